@@ -0,0 +1,94 @@
+package aterm.terminal;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A terminal with no pty behind it, fed by the benchmarks through {@link #inputWrite}.
+ */
+class BenchTerminal extends AbstractTerminal {
+    /**
+     * Bytes per {@link #feed} call, what a pty read usually returns.
+     */
+    static final int CHUNK = 4096;
+
+    /**
+     * Stands in for a view, so updates are delivered as with one attached.
+     */
+    static final TerminalClient NO_CLIENT = new TerminalClient() {
+        @Override
+        public void onUpdate(int startRow, int endRow, int startCol, int endCol,
+                             int scrollStartRow, int scrollEndRow, int scrollRows,
+                             boolean cursorMoved, int seq) {
+        }
+
+        @Override
+        public void onBell() {
+        }
+    };
+
+    private final int mScrollRows;
+    private final byte[] mChunk = new byte[CHUNK];
+
+    BenchTerminal(int rows, int cols, int scrollRows) {
+        super(rows, cols, scrollRows, 0xffffffff, 0xff000000);
+        mScrollRows = scrollRows;
+    }
+
+    /**
+     * Parse {@code data} a chunk at a time out of a buffer the size of a pty read.
+     * Passing slices of {@code data} itself would make the VM copy all of it into
+     * native memory for every chunk.
+     */
+    void feed(byte[] data) {
+        for (int off = 0; off < data.length; off += CHUNK) {
+            final int len = Math.min(CHUNK, data.length - off);
+            System.arraycopy(data, off, mChunk, 0, len);
+            inputWrite(mChunk, 0, len);
+        }
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @NonNull
+    @Override
+    public String getTitle() {
+        return "";
+    }
+
+    @Override
+    public void setTitle(@NonNull String title) {
+    }
+
+    @NonNull
+    @Override
+    public String getKey() {
+        return "bench";
+    }
+
+    @Override
+    protected void setPtyWindowSize(int cols, int rows) {
+    }
+
+    @Override
+    protected void closePty() {
+    }
+
+    @Override
+    protected int scrollRowSize() {
+        return mScrollRows;
+    }
+
+    @Override
+    public void flushToPty() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    @Override
+    public void writeToPty(byte[] bytes, int len) {
+    }
+}
@@ -0,0 +1,176 @@
+package aterm.terminal;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generated pty output shaped like what a terminal usually sees. The same seed
+ * always gives the same bytes, so runs compare.
+ */
+enum Corpus {
+    /**
+     * Service logs, mostly plain text with a coloured level.
+     */
+    LOG {
+        @Override
+        void line(StringBuilder sb, Random random, int n) {
+            final String[] levels = {"\u001b[32mINFO\u001b[m ", "\u001b[32mINFO\u001b[m ",
+                    "\u001b[32mINFO\u001b[m ", "\u001b[33mWARN\u001b[m ", "\u001b[1;31mERROR\u001b[m"};
+            sb.append(String.format(Locale.ROOT, "2024-01-01 12:%02d:%02d.%03d %s [worker-%d] request %d served in %d ms\r\n",
+                    n / 60 % 60, n % 60, random.nextInt(1000), levels[random.nextInt(levels.length)],
+                    random.nextInt(8), n, random.nextInt(500)));
+        }
+    },
+
+    /**
+     * Compiler diagnostics, short bold and coloured spans with the source line
+     * and a caret under it.
+     */
+    COMPILER {
+        @Override
+        void line(StringBuilder sb, Random random, int n) {
+            final int lineNo = 1 + random.nextInt(2000);
+            final int col = 1 + random.nextInt(40);
+            final boolean error = random.nextInt(4) == 0;
+            sb.append("\u001b[1msrc/main/cpp/module").append(n % 17).append(".c:")
+                    .append(lineNo).append(':').append(col).append(": \u001b[0m")
+                    .append(error ? "\u001b[1;31merror: \u001b[0m" : "\u001b[1;35mwarning: \u001b[0m")
+                    .append("\u001b[1mimplicit conversion loses integer precision: 'long' to 'int' [-Wshorten-64-to-32]\u001b[0m\r\n");
+            sb.append(String.format(Locale.ROOT, "%5d | ", lineNo));
+            for (int i = 0; i < col - 1; i++) {
+                sb.append(' ');
+            }
+            sb.append("int value = \u001b[1;31mstrtol(text, NULL, 10)\u001b[0m;\r\n");
+            sb.append("      | ");
+            for (int i = 0; i < col + 11; i++) {
+                sb.append(' ');
+            }
+            sb.append("\u001b[1;32m^~~~~~~~~~~~~~~~~~~~~~\u001b[0m\r\n");
+        }
+    },
+
+    /**
+     * An editor redrawing the screen: cursor addressing, syntax colours,
+     * erase to end of line, scrolling inside a region and a reverse status line.
+     */
+    VIM {
+        @Override
+        void line(StringBuilder sb, Random random, int n) {
+            final String[] words = {"\u001b[38;5;130mif\u001b[m", "\u001b[38;5;28mint\u001b[m",
+                    "value", "=", "\u001b[38;5;160m\"text\"\u001b[m", "(", ")", "{", "}",
+                    "\u001b[38;5;130mreturn\u001b[m", "\u001b[38;5;21m/* note */\u001b[m", "count++;"};
+            if (n % 24 == 0) {
+                // A page down, everything repainted
+                sb.append("\u001b[?25l\u001b[H");
+                for (int row = 1; row < 24; row++) {
+                    sb.append("\u001b[").append(row).append(";1H\u001b[33m").append(String.format(Locale.ROOT, "%4d ", n + row))
+                            .append("\u001b[m");
+                    code(sb, random, words);
+                    sb.append("\u001b[K");
+                }
+                sb.append("\u001b[24;1H\u001b[7m src/main/cpp/aterm_terminal.c [+]")
+                        .append("                                    ").append(n).append(",1  \u001b[27m")
+                        .append("\u001b[?25h");
+            } else {
+                // One line down, the region scrolls
+                sb.append("\u001b[?25l\u001b[1;23r\u001b[23;1H\n\u001b[r\u001b[23;1H\u001b[33m")
+                        .append(String.format(Locale.ROOT, "%4d ", n)).append("\u001b[m");
+                code(sb, random, words);
+                sb.append("\u001b[K\u001b[24;60H").append(n).append(",1\u001b[K\u001b[?25h");
+            }
+        }
+
+        private void code(StringBuilder sb, Random random, String[] words) {
+            final int indent = random.nextInt(4) * 4;
+            for (int i = 0; i < indent; i++) {
+                sb.append(' ');
+            }
+            final int count = random.nextInt(10);
+            for (int i = 0; i < count; i++) {
+                sb.append(words[random.nextInt(words.length)]).append(' ');
+            }
+        }
+    },
+
+    /**
+     * A process monitor on the alternate screen, every frame repositions and
+     * recolours most cells.
+     */
+    HTOP {
+        @Override
+        void line(StringBuilder sb, Random random, int n) {
+            if (n == 0) {
+                sb.append("\u001b[?1049h\u001b[?25l");
+            }
+            sb.append("\u001b[H");
+            for (int cpu = 0; cpu < 4; cpu++) {
+                final int used = random.nextInt(30);
+                sb.append("\u001b[").append(cpu + 1).append(";3H\u001b[36m").append(cpu)
+                        .append("\u001b[1;37m[\u001b[32m");
+                for (int i = 0; i < 30; i++) {
+                    if (i == used) {
+                        sb.append("\u001b[m");
+                    }
+                    sb.append(i < used ? '|' : ' ');
+                }
+                sb.append(String.format(Locale.ROOT, "\u001b[m%5.1f%%\u001b[1;37m]\u001b[m", used * 100 / 30.0));
+            }
+            sb.append("\u001b[6;1H\u001b[30;42m    PID USER      PRI  NI  VIRT   RES   SHR S CPU% MEM%   TIME+  Command")
+                    .append("\u001b[K\u001b[m");
+            for (int row = 7; row <= 24; row++) {
+                final boolean selected = row == 7 + n % 18;
+                sb.append("\u001b[").append(row).append(";1H").append(selected ? "\u001b[30;46m" : "");
+                sb.append(String.format(Locale.ROOT, "%7d \u001b[38;5;%dmu0_a%-5d\u001b[39m  20   0 %5dM %5dM %5dM %c %4.1f %4.1f %3d:%02d.%02d ",
+                        1000 + random.nextInt(30000), selected ? 0 : 244, random.nextInt(300),
+                        random.nextInt(4000), random.nextInt(500), random.nextInt(100),
+                        random.nextInt(8) == 0 ? 'R' : 'S', random.nextInt(1000) / 10.0,
+                        random.nextInt(200) / 10.0, random.nextInt(60), random.nextInt(60), random.nextInt(100)));
+                sb.append("\u001b[1mcom.example.app").append(random.nextInt(20)).append("\u001b[22m\u001b[K\u001b[m");
+            }
+        }
+    },
+
+    /**
+     * Chinese and Japanese text, double width cells and three byte UTF-8.
+     */
+    CJK {
+        @Override
+        void line(StringBuilder sb, Random random, int n) {
+            final String[] words = {"终端", "模拟器", "性能", "测试", "日本語", "のテキスト",
+                    "表示", "文字", "中文", "输出", "漢字", "かな"};
+            sb.append(n).append(": ");
+            final int count = 5 + random.nextInt(15);
+            for (int i = 0; i < count; i++) {
+                sb.append(words[random.nextInt(words.length)]);
+                if (random.nextInt(4) == 0) {
+                    sb.append("，");
+                }
+            }
+            sb.append("。\r\n");
+        }
+    };
+
+    /**
+     * Append the {@code n}th line, or frame, of output.
+     */
+    abstract void line(StringBuilder sb, Random random, int n);
+
+    /**
+     * At least {@code size} bytes of output, always cut after a whole line.
+     */
+    byte[] generate(int size) {
+        final Random random = new Random(0x5eed + ordinal());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(size + 4096);
+        final StringBuilder sb = new StringBuilder();
+        int n = 0;
+        while (out.size() < size) {
+            sb.setLength(0);
+            line(sb, random, n++);
+            final byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+}
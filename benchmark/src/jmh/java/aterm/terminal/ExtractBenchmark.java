@@ -0,0 +1,109 @@
+package aterm.terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a full screen back out, the way a frame is drawn with
+ * {@link AbstractTerminal#getCellRun} or with one
+ * {@link AbstractTerminal#getSnapshot} split into the same runs, and the way a
+ * selection is copied with {@link AbstractTerminal#getText}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class ExtractBenchmark {
+    @Param({"LOG", "COMPILER", "HTOP", "CJK"})
+    Corpus corpus;
+
+    private BenchTerminal mTerm;
+    private final ScreenCell mRun = new ScreenCell();
+    private final ScreenSnapshot mSnapshot = new ScreenSnapshot();
+
+    @Setup
+    public void setup() {
+        mTerm = new BenchTerminal(50, 160, 1000);
+        mTerm.setClient(BenchTerminal.NO_CLIENT);
+        mTerm.feed(corpus.generate(256 * 1024));
+        mRun.data = new int[mTerm.getCols()];
+        mRun.widths = new byte[mTerm.getCols()];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTerm.close();
+    }
+
+    @Benchmark
+    public void getCellRun(Blackhole bh) {
+        final int rows = mTerm.getRows();
+        final int cols = mTerm.getCols();
+        for (int row = 0; row < rows; row++) {
+            int col = 0;
+            while (col < cols) {
+                mTerm.getCellRun(row, col, mRun);
+                bh.consume(mRun.fg);
+                col += Math.max(1, mRun.colSize);
+            }
+        }
+    }
+
+    /**
+     * Same frame as {@link #getCellRun}, runs split the way ScreenLine.drawLine does.
+     */
+    @Benchmark
+    public void getSnapshot(Blackhole bh) {
+        final int rows = mTerm.getRows();
+        mTerm.getSnapshot(0, rows, mSnapshot);
+        final int[] data = mSnapshot.data;
+        final int cols = mSnapshot.cols;
+        for (int row = 0; row < rows; row++) {
+            final int rowStart = mSnapshot.index(row, 0);
+            int col = 0;
+            while (col < cols) {
+                final int first = rowStart + col * ScreenSnapshot.STRIDE;
+                final int fg = data[first + ScreenSnapshot.FG];
+                final int bg = data[first + ScreenSnapshot.BG];
+                final int attrs = data[first + ScreenSnapshot.FLAGS] & ~ScreenSnapshot.CELL_MASK;
+                int end = col;
+                while (end < cols) {
+                    final int i = rowStart + end * ScreenSnapshot.STRIDE;
+                    final int flags = data[i + ScreenSnapshot.FLAGS];
+                    if (data[i + ScreenSnapshot.FG] != fg || data[i + ScreenSnapshot.BG] != bg
+                            || (flags & ~ScreenSnapshot.CELL_MASK) != attrs) {
+                        break;
+                    }
+                    end += Math.max(1, flags & ScreenSnapshot.WIDTH_MASK);
+                }
+                bh.consume(fg);
+                col = Math.max(end, col + 1);
+            }
+        }
+    }
+
+    @Benchmark
+    public String getText() {
+        return mTerm.getText(0, mTerm.getRows(), 0, mTerm.getCols());
+    }
+
+    @Benchmark
+    public String getTextScrollback() {
+        return mTerm.getText(-mTerm.getScrollCurRows(), mTerm.getRows(), 0, mTerm.getCols());
+    }
+}
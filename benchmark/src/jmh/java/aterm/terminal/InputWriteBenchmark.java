@@ -0,0 +1,64 @@
+package aterm.terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing throughput: one operation feeds a whole {@link Corpus} of {@link #SIZE}
+ * bytes in pty sized chunks, so MiB/s is ops/s times {@link #SIZE} / 2^20.
+ * {@link #attached} compares a terminal shown in a view with a headless one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class InputWriteBenchmark {
+    static final int SIZE = 1 << 20;
+
+    @Param({"LOG", "COMPILER", "VIM", "HTOP", "CJK"})
+    Corpus corpus;
+
+    @Param({"true", "false"})
+    boolean attached;
+
+    private BenchTerminal mTerm;
+    private byte[] mData;
+
+    @Setup
+    public void setup() {
+        mTerm = new BenchTerminal(24, 80, 1000);
+        if (attached) {
+            mTerm.setClient(BenchTerminal.NO_CLIENT);
+        } else {
+            mTerm.setHeadlessWhenDetached(true);
+        }
+        mData = corpus.generate(SIZE);
+        // Reach steady state first, a full scrollback and a settled screen
+        mTerm.feed(mData);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTerm.close();
+    }
+
+    @Benchmark
+    public int inputWrite() {
+        mTerm.feed(mData);
+        return mTerm.getCursorRow();
+    }
+}
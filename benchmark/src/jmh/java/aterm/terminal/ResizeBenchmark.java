@@ -0,0 +1,61 @@
+package aterm.terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotating the device: one operation resizes a terminal with a full scrollback
+ * between portrait and landscape. Rows move between the screen and the scrollback
+ * and both published screens are rebuilt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class ResizeBenchmark {
+    @Param({"0", "1000", "10000"})
+    int scrollRows;
+
+    private BenchTerminal mTerm;
+    private boolean mLandscape;
+
+    @Setup
+    public void setup() {
+        mTerm = new BenchTerminal(60, 50, scrollRows);
+        mTerm.setClient(BenchTerminal.NO_CLIENT);
+        final byte[] data = Corpus.LOG.generate(64 * 1024);
+        for (int filled = 0; filled < scrollRows + mTerm.getRows(); filled += 500) {
+            mTerm.feed(data);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTerm.close();
+    }
+
+    @Benchmark
+    public int resize() {
+        mLandscape = !mLandscape;
+        if (mLandscape) {
+            mTerm.resize(120, 24);
+        } else {
+            mTerm.resize(50, 60);
+        }
+        return mTerm.getScrollCurRows();
+    }
+}
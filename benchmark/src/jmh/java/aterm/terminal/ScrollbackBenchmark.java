@@ -0,0 +1,64 @@
+package aterm.terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Line feeds at the bottom of the screen, each one pushes a row into a scrollback
+ * that is already full. One operation is {@link #LINES} short lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(3)
+public class ScrollbackBenchmark {
+    static final int LINES = 1000;
+
+    @Param({"0", "1000", "10000"})
+    int scrollRows;
+
+    @Param({"80", "200"})
+    int cols;
+
+    private BenchTerminal mTerm;
+    private byte[] mData;
+
+    @Setup
+    public void setup() {
+        mTerm = new BenchTerminal(24, cols, scrollRows);
+        mTerm.setClient(BenchTerminal.NO_CLIENT);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            sb.append("\u001b[32mline\u001b[m ").append(i).append("\r\n");
+        }
+        mData = sb.toString().getBytes();
+        for (int filled = 0; filled < scrollRows + mTerm.getRows(); filled += LINES) {
+            mTerm.feed(mData);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTerm.close();
+    }
+
+    @Benchmark
+    public int push() {
+        mTerm.feed(mData);
+        return mTerm.getScrollCurRows();
+    }
+}
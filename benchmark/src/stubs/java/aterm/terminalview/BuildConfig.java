@@ -0,0 +1,5 @@
+package aterm.terminalview;
+
+public final class BuildConfig {
+    public static final boolean DEBUG = Boolean.parseBoolean("false");
+}
@@ -3,6 +3,7 @@
 #include "jni.h"
 
 #include <fcntl.h>
+#include <poll.h>
 #include <stdio.h>
 #include <termios.h>
 #include <unistd.h>
@@ -12,8 +13,12 @@
 #include <string.h>
 #include <errno.h>
 #include <pthread.h>
+#include <sys/epoll.h>
+#include <time.h>
 
 #include "utils/log.h"
+#include "scrollback.h"
+#include "trace.h"
 
 
 #ifdef __cplusplus
@@ -26,8 +31,65 @@ extern "C" {
 #define DEBUG_CALLBACKS 0
 #define DEBUG_SCROLLBACK 0
 
+// The NDK's AttachCurrentThread(AsDaemon) takes JNIEnv **, a desktop JDK's void **
+#ifdef __ANDROID__
+#define ATTACH_ENV(penv) (penv)
+#else
+#define ATTACH_ENV(penv) ((void **) (penv))
+#endif
+
+/*
+ * Layout shared with ScreenSnapshot.java
+ */
+#define SNAPSHOT_STRIDE 4
+#define SNAPSHOT_FLAG_BOLD (1 << 8)
+#define SNAPSHOT_FLAG_UNDERLINE (1 << 9)
+#define SNAPSHOT_FLAG_STRIKE (1 << 10)
+#define SNAPSHOT_FLAG_EMOJI (1 << 11)     //chars carry VS16, asks for emoji presentation
+#define SNAPSHOT_CELL_MASK (0xff | SNAPSHOT_FLAG_EMOJI)
+
+/*
+ * Pty reader batching: a batch is parsed before damage is flushed once.
+ * It grows while output keeps streaming and shrinks back when it drains.
+ */
+#define READER_BUFFER_SIZE (64 * 1024)
+#define READER_MIN_BATCH (16 * 1024)
+#define READER_MAX_BATCH (1024 * 1024)
+#define READER_BATCH_NANOS 16000000L
+
+/*
+ * The ptys of all terminals are read by a few shared epoll loops. A loop
+ * reads at most READER_BUDGET bytes from a pty before it moves on to the next
+ * ready one, so a flooding session can't starve the others.
+ */
+#define READER_LOOPS 2
+#define READER_BUDGET READER_BUFFER_SIZE
+#define READER_EVENTS 64
+
+/*
+ * libvterm decodes a text run into a VLA of 4 bytes per input byte, so long
+ * input is fed in slices to keep that off the end of a 1 MB thread stack.
+ */
+#define INPUT_SLICE (16 * 1024)
+
+/*
+ * Pty output is collected and sent once per call, or earlier past this size
+ */
+#define OUTPUT_INITIAL_SIZE (4 * 1024)
+#define OUTPUT_MAX_PENDING (64 * 1024)
+
+/*
+ * Output an output fd couldn't take at once waits in a queue, past this size
+ * more is dropped rather than blocking the caller
+ */
+#define OUTPUT_MAX_QUEUED (1024 * 1024)
+
+/*
+ * Code points copied out of Java at a time by dispatchText
+ */
+#define TEXT_CHUNK 1024
+
 typedef int status_t;
-typedef short unsigned int dimen_t;
 
 #ifdef _LP64
 #define jlong_to_ptr(a) ((void*)(a))
@@ -45,14 +107,13 @@ static jclass terminalCallbacksClass;
 /*
  * Callback methods
  */
-static jmethodID damageMethod;
-static jmethodID moveRectMethod;
-static jmethodID moveCursorMethod;
+static jmethodID updateMethod;
 static jmethodID setTermPropBooleanMethod;
 static jmethodID setTermPropIntMethod;
 static jmethodID setTermPropStringMethod;
 static jmethodID setTermPropColorMethod;
 static jmethodID bellMethod;
+static jmethodID ptyClosedMethod;
 
 /*
  * CellRun class
@@ -68,8 +129,17 @@ static jfieldID cellRunBoldField;
 static jfieldID cellRunUnderlineField;
 static jfieldID cellRunStrikeField;
 
-static jclass outputCallbackClass;
-static jmethodID outputWriteMethod;
+/*
+ * ScreenSnapshot class
+ */
+static jfieldID snapshotDataField;
+static jfieldID snapshotSeqField;
+
+/*
+ * AbstractTerminal class, the output upcall isn't part of OutputCallback
+ */
+static jclass terminalClass;
+static jmethodID outputWriteBufferMethod;
 
 
 extern JavaVM *javaVM;
@@ -84,99 +154,140 @@ static JNIEnv *getJNIEnv() {
 }
 
 
+/*
+ * Screen changes collected from the VTerm callbacks until the next publish,
+ * then delivered to Java in one upcall.
+ */
 typedef struct {
-    uint32_t code;
-    VTermScreenCellAttrs attrs;
-    char width;
-    VTermColor fg, bg;
-} CellAttr;
-
-
-typedef struct {
-    dimen_t cols;
-
-    CellAttr cells[0];
-} ScrollbackLine;
-
-static inline ScrollbackLine *new_scrollback_line(dimen_t cols) {
-    ScrollbackLine *line = (ScrollbackLine *) malloc(sizeof(ScrollbackLine)
-                                                     + sizeof(CellAttr) * cols);
-    line->cols = cols;
-    return line;
-}
-
-static inline void free_scrollback_line(ScrollbackLine *line) {
-    free(line);
-}
-
-static inline dimen_t scroll_line_copy_from(ScrollbackLine *line, dimen_t cols,
-                                            const VTermScreenCell *cells) {
-    dimen_t n = line->cols > cols ? cols : line->cols;
-
-    for (int i = 0; i < n; ++i) {
-        line->cells[i].code = cells[i].chars[0];
-        line->cells[i].width = cells[i].width;
-
-        line->cells[i].attrs = cells[i].attrs;
-        line->cells[i].fg = cells[i].fg;
-        line->cells[i].bg = cells[i].bg;
-    }
-    return n;
-}
+    VTermRect damage;       //union of damaged cells, empty when start_row == end_row
+    VTermRect scrollRect;   //region moved by scroll rows
+    int scroll;             //net rows scrolled up (negative: down)
+    bool cursorMoved;
+    VTermPos cursor;
+    int cursorVisible;
+} ScreenUpdate;
 
-static inline dimen_t
-scroll_line_copy_to(const ScrollbackLine *line, dimen_t cols, VTermScreenCell *cells) {
-    dimen_t n = cols > line->cols ? line->cols : cols;
-
-    for (int i = 0; i < n; ++i) {
-        cells[i].chars[0] = line->cells[i].code;
-        cells[i].chars[1] = 0;
-
-        cells[i].width = line->cells[i].width;
-
-        cells[i].attrs = line->cells[i].attrs;
-        cells[i].fg = line->cells[i].fg;
-        cells[i].bg = line->cells[i].bg;
-    }
-    return n;
-}
-
-static inline void
-scroll_line_get_cell(const ScrollbackLine *line, dimen_t col, VTermScreenCell *cell) {
-    cell->chars[0] = line->cells[col].code;
-    cell->chars[1] = 0;
-
-    cell->width = line->cells[col].width;
-
-    cell->attrs = line->cells[col].attrs;
-    cell->fg = line->cells[col].fg;
-    cell->bg = line->cells[col].bg;
-}
+/*
+ * A pty handed over by Java, registered with one of the reader loops
+ */
+typedef struct PtyReader PtyReader;
 
 /*
  * Terminal session
  */
 typedef struct {
     VTerm *vt;
+    size_t vtermBytes;      //allocated by libvterm, see vterm_allocator
 
-    jobject callbacks;
-    jobject outputCallback;
+    /*
+     * Weak refs to the Java terminal, so an unreferenced terminal can still be
+     * collected and cleaned up. A loop thread promotes them before use.
+     */
+    jweak callbacks;
+    jweak outputCallback;
 
     dimen_t rows;
     dimen_t cols;
 
-    ScrollbackLine **scrollLines;
-    dimen_t scrollCur;
-    dimen_t scrollSize;
-
-    jbyteArray buffer;
-    jint bufferSize;
+    Scrollback scrollback;
+
+    /*
+     * Copy of the screen published for readers on other threads. The parser
+     * refreshes the back buffer after each flush and swaps it in under lock,
+     * readers only hold the lock while copying from the front buffer.
+     * Cells use the ScreenSnapshot layout.
+     */
+    pthread_mutex_t lock;   //guards the published screen and the scrollback
+    jint *cells[2];
+    uint8_t *dirty;         //per row, bit n set while cells[n] is stale
+    int front;
+    size_t scrollCur;       //scrollback rows at the last publish
+    long pendingLines;      //lines pushed minus popped since the last publish
+
+    /*
+     * getSnapshot copies into this under lock, then into Java outside it, so
+     * nothing that can block runs inside a critical array region
+     */
+    pthread_mutex_t snapshotLock;
+    jint *snapshot;
+    size_t snapshotSize;    //in jints
+
+    ScreenUpdate update;
+    jint seq;               //published screens that came with an update
+
+    /*
+     * Set from Java while no client is attached, if the terminal opted in:
+     * updates are dropped instead of calling into Java and the published
+     * screen is left stale, only the dirty rows are tracked. Attaching
+     * publishes them and delivers one full screen update.
+     */
+    bool headless;
+
+    /*
+     * Guards reader and the output queue, which the reader loop drains
+     * without the Java monitor. Taken before a loop's lock.
+     */
+    pthread_mutex_t ioLock;
+    PtyReader *reader;
+
+    /*
+     * Bytes libvterm produced for the pty, sent together at the end of each
+     * call that can produce them
+     */
+    char *output;
+    size_t outputLen;
+    size_t outputSize;
+    jobject outputBuffer;   //direct ByteBuffer over output, dropped when it grows
+    int outputFd;           //written to directly when >= 0, set under ioLock
+    char *queue;            //what outputFd didn't take yet
+    size_t queueLen;
+    size_t queueSize;
+    size_t queueDropped;    //past OUTPUT_MAX_QUEUED since the queue was last empty
+
+    jint palette[256];      //ARGB of the indexed colors, rebuilt when they change
+
+    PtyTrace *trace;        //records the session while set, under the Java monitor
 
 } Terminal;
 
+typedef struct ReaderLoop ReaderLoop;
+
+struct PtyReader {
+    Terminal *term;
+    ReaderLoop *loop;
+    int fd;
+    size_t batch;           //bytes parsed before a flush
+    size_t pending;         //bytes parsed since the last flush
+    struct timespec batchStart;
+    bool closed;            //out of the loop, guarded by loop->lock
+    bool watchingOutput;    //also polled for POLLOUT, guarded by term->ioLock
+    PtyReader *nextRetired;
+};
+
+/*
+ * One thread waiting on the ptys of its readers. Readers are dropped from
+ * epoll before they are freed, and freed only after the loop finished the
+ * round that might still hold them in its events.
+ */
+struct ReaderLoop {
+    pthread_t thread;
+    int epollFd;
+    int wakeFds[2];         //written to end the current round
+    char *buffer;
+
+    pthread_mutex_t lock;
+    pthread_cond_t roundDone;
+    unsigned long round;
+    int readers;
+    PtyReader *retired;     //stopped from the loop's own thread, freed after the round
+};
+
+static ReaderLoop readerLoops[READER_LOOPS];
+static pthread_once_t readerLoopsOnce = PTHREAD_ONCE_INIT;
+
 static Terminal *
 new_terminal(jobject callbacks, jobject outputCallback,
-             dimen_t rows, dimen_t cols, dimen_t scrollRows, int fg, int bg);
+             dimen_t rows, dimen_t cols, size_t scrollRows, int fg, int bg);
 
 static void free_terminal(Terminal *term);
 
@@ -185,7 +296,9 @@ static bool terminal_dispatchCharacter(Terminal *term, int mod, int character);
 
 static bool terminal_dispatchKey(Terminal *term, int mod, int key);
 
-static status_t terminal_resize(Terminal *term, dimen_t rows, dimen_t cols, dimen_t scrollRows);
+static void terminal_dispatchText(Terminal *term, int mod, const jint *codePoints, size_t len);
+
+static status_t terminal_resize(Terminal *term, dimen_t rows, dimen_t cols, size_t scrollRows);
 
 static status_t terminal_onPushline(Terminal *term, dimen_t cols, const VTermScreenCell *cells);
 
@@ -193,20 +306,48 @@ static status_t terminal_onPopline(Terminal *term, dimen_t cols, VTermScreenCell
 
 static void terminal_getCellLocked(Terminal *term, VTermPos pos, VTermScreenCell *cell);
 
+static void terminal_markDirty(Terminal *term, int startRow, int endRow);
+
+static int terminal_fillBack(Terminal *term);
+
+static void terminal_updatePalette(Terminal *term);
+
+static void terminal_swapLocked(Terminal *term, int back);
+
+static void terminal_publish(Terminal *term);
+
+static void terminal_deliverUpdate(Terminal *term);
+
+static void terminal_stopReader(Terminal *term);
+
+static void terminal_flushOutput(Terminal *term);
+
 /*
  * VTerm event handlers
  */
 
+static inline void rect_union(VTermRect *r, VTermRect add) {
+    if (add.start_row >= add.end_row || add.start_col >= add.end_col) {
+        return;
+    }
+    if (r->start_row >= r->end_row) {
+        *r = add;
+        return;
+    }
+    if (add.start_row < r->start_row) r->start_row = add.start_row;
+    if (add.end_row > r->end_row) r->end_row = add.end_row;
+    if (add.start_col < r->start_col) r->start_col = add.start_col;
+    if (add.end_col > r->end_col) r->end_col = add.end_col;
+}
+
 static int term_damage(VTermRect rect, void *user) {
     Terminal *term = (Terminal *) user;
 #if DEBUG_CALLBACKS
     ALOGW("term_damage");
 #endif
-
-    JNIEnv *env = getJNIEnv();
-    return (*env)->CallIntMethod(env, term->callbacks, damageMethod, rect.start_row,
-                                 rect.end_row,
-                                 rect.start_col, rect.end_col);
+    terminal_markDirty(term, rect.start_row, rect.end_row);
+    rect_union(&term->update.damage, rect);
+    return 1;
 }
 
 static int term_moverect(VTermRect dest, VTermRect src, void *user) {
@@ -214,11 +355,40 @@ static int term_moverect(VTermRect dest, VTermRect src, void *user) {
 #if DEBUG_CALLBACKS
     ALOGW("term_moverect");
 #endif
-
-    JNIEnv *env = getJNIEnv();
-    return (*env)->CallIntMethod(env, term->callbacks, moveRectMethod,
-                                 dest.start_row, dest.end_row, dest.start_col, dest.end_col,
-                                 src.start_row, src.end_row, src.start_col, src.end_col);
+    terminal_markDirty(term, dest.start_row, dest.end_row);
+
+    ScreenUpdate *update = &term->update;
+    VTermRect region = dest;
+    rect_union(&region, src);
+
+    const int delta = src.start_row - dest.start_row;
+    const bool vertical = delta != 0 && src.start_col == dest.start_col
+                          && src.end_col == dest.end_col;
+    if (vertical && (update->scroll == 0
+                     || memcmp(&region, &update->scrollRect, sizeof(VTermRect)) == 0)) {
+        //之前的损坏区域跟着内容移动，保守地取移动前后的并集
+        if (update->damage.start_row < update->damage.end_row) {
+            VTermRect moved = update->damage;
+            moved.start_row -= delta;
+            moved.end_row -= delta;
+            if (moved.start_row < region.start_row) moved.start_row = region.start_row;
+            if (moved.end_row > region.end_row) moved.end_row = region.end_row;
+            rect_union(&update->damage, moved);
+        }
+        update->scrollRect = region;
+        update->scroll += delta;
+        if (update->scroll == 0) {
+            rect_union(&update->damage, region);
+        }
+    } else {
+        // Not a single scroll region any more, repaint whatever moved
+        rect_union(&update->damage, region);
+        if (update->scroll != 0) {
+            rect_union(&update->damage, update->scrollRect);
+            update->scroll = 0;
+        }
+    }
+    return 1;
 }
 
 static int term_movecursor(VTermPos pos, VTermPos oldpos, int visible, void *user) {
@@ -227,10 +397,10 @@ static int term_movecursor(VTermPos pos, VTermPos oldpos, int visible, void *use
     ALOGW("term_movecursor new pos(%d,%d)  old(%d,%d) visible %d", pos.col, pos.row, oldpos.col,
           oldpos.row, visible);
 #endif
-
-    JNIEnv *env = getJNIEnv();
-    return (*env)->CallIntMethod(env, term->callbacks, moveCursorMethod, pos.row,
-                                 pos.col, oldpos.row, oldpos.col, visible);
+    term->update.cursorMoved = true;
+    term->update.cursor = pos;
+    term->update.cursorVisible = visible;
+    return 1;
 }
 
 static int term_settermprop(VTermProp prop, VTermValue *val, void *user) {
@@ -311,49 +481,262 @@ static VTermScreenCallbacks cb = {
 
 static void output_callback(const char *s, size_t len, void *user) {
     Terminal *term = (Terminal *) user;
-    JNIEnv *env = getJNIEnv();
 
-    jbyteArray bytes = term->buffer;
-    if (len > term->bufferSize) {
-        bytes = (*env)->NewByteArray(env, len);
+    if (term->outputLen > 0 && term->outputLen + len > OUTPUT_MAX_PENDING) {
+        terminal_flushOutput(term);
+    }
+    if (term->outputLen + len > term->outputSize) {
+        size_t size = term->outputSize * 2;
+        if (size < term->outputLen + len) {
+            size = term->outputLen + len;
+        }
+        char *output = (char *) realloc(term->output, size);
+        if (!output) {
+            ALOGE("output_callback: out of memory, %zu bytes dropped", len);
+            return;
+        }
+        term->output = output;
+        term->outputSize = size;
+        if (term->outputBuffer) {
+            JNIEnv *env = getJNIEnv();
+            (*env)->DeleteGlobalRef(env, term->outputBuffer);
+            term->outputBuffer = NULL;
+        }
     }
 
-    (*env)->SetByteArrayRegion(env, bytes, 0, len, (const jbyte *) s);
-    (*env)->CallVoidMethod(env, term->outputCallback, outputWriteMethod, bytes, (jint) len);
-    if ((*env)->ExceptionCheck(env)) {
-        (*env)->ExceptionClear(env);
+    memcpy(term->output + term->outputLen, s, len);
+    term->outputLen += len;
+}
+
+/*
+ * Write what the fd takes without blocking, returns the bytes written or -1
+ * once it failed for good
+ */
+static ssize_t write_available(int fd, const char *s, size_t len) {
+    size_t done = 0;
+    while (done < len) {
+        ssize_t n = write(fd, s + done, len - done);
+        if (n < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            if (errno == EAGAIN) {
+                break;
+            }
+            return -1;
+        }
+        done += n;
     }
+    return (ssize_t) done;
+}
 
-    if (bytes != term->buffer) {
-        (*env)->DeleteLocalRef(env, bytes);
+/*
+ * Have the pty's reader loop wake up on POLLOUT to drain the queue, or stop it.
+ * Only when the reader reads the output fd, otherwise the queue drains on the
+ * next flush or awaitPtyWritable. The caller holds ioLock.
+ */
+static void terminal_watchOutputLocked(Terminal *term, bool watch) {
+    PtyReader *reader = term->reader;
+    if (!reader || reader->watchingOutput == watch || (watch && reader->fd != term->outputFd)) {
+        return;
     }
+    ReaderLoop *loop = reader->loop;
+    pthread_mutex_lock(&loop->lock);
+    if (!reader->closed) {
+        struct epoll_event event = {.events = EPOLLIN | (watch ? EPOLLOUT : 0), .data.ptr = reader};
+        epoll_ctl(loop->epollFd, EPOLL_CTL_MOD, reader->fd, &event);
+    }
+    pthread_mutex_unlock(&loop->lock);
+    reader->watchingOutput = watch;
 }
 
+/*
+ * Write what the output fd takes of the queue, the caller holds ioLock.
+ * Returns whether the queue is empty.
+ */
+static bool terminal_drainQueueLocked(Terminal *term) {
+    if (term->queueLen == 0) {
+        return true;
+    }
+    ssize_t n = write_available(term->outputFd, term->queue, term->queueLen);
+    if (n < 0) {
+        ALOGE("drainQueue: write failed, %zu bytes dropped: %s", term->queueLen, strerror(errno));
+        n = (ssize_t) term->queueLen;
+    }
+    term->queueLen -= n;
+    memmove(term->queue, term->queue + n, term->queueLen);
+    if (term->queueLen == 0) {
+        if (term->queueDropped > 0) {
+            ALOGW("pty output queue drained, %zu bytes were dropped", term->queueDropped);
+            term->queueDropped = 0;
+        }
+        terminal_watchOutputLocked(term, false);
+        return true;
+    }
+    return false;
+}
+
+/*
+ * Send the output to the fd, queueing what it can't take now behind what is
+ * queued already. Never blocks, past OUTPUT_MAX_QUEUED the rest is dropped.
+ */
+static void terminal_writeOutputFd(Terminal *term) {
+    const char *s = term->output;
+    size_t len = term->outputLen;
+
+    pthread_mutex_lock(&term->ioLock);
+    if (terminal_drainQueueLocked(term)) {
+        ssize_t n = write_available(term->outputFd, s, len);
+        if (n < 0) {
+            ALOGE("flushOutput: write failed: %s", strerror(errno));
+            n = (ssize_t) len;
+        }
+        s += n;
+        len -= n;
+    }
+    if (len > 0) {
+        if (term->queueLen + len > OUTPUT_MAX_QUEUED) {
+            if (term->queueDropped == 0) {
+                ALOGW("flushOutput: pty not reading, dropping output");
+            }
+            term->queueDropped += len;
+            len = 0;
+        } else if (term->queueLen + len > term->queueSize) {
+            size_t size = term->queueSize ? term->queueSize * 2 : OUTPUT_INITIAL_SIZE;
+            while (size < term->queueLen + len) {
+                size *= 2;
+            }
+            char *queue = (char *) realloc(term->queue, size);
+            if (!queue) {
+                ALOGE("flushOutput: out of memory, %zu bytes dropped", len);
+                len = 0;
+            } else {
+                term->queue = queue;
+                term->queueSize = size;
+            }
+        }
+        if (len > 0) {
+            memcpy(term->queue + term->queueLen, s, len);
+            term->queueLen += len;
+        }
+        if (term->queueLen > 0) {
+            terminal_watchOutputLocked(term, true);
+        }
+    }
+    pthread_mutex_unlock(&term->ioLock);
+}
+
+/*
+ * Send the collected output with one write, or one upcall sharing a direct
+ * ByteBuffer over the native buffer
+ */
+static void terminal_flushOutput(Terminal *term) {
+    if (term->outputLen == 0) {
+        return;
+    }
+    if (term->trace) {
+        trace_output(term->trace, term->output, term->outputLen);
+    }
+
+    if (term->outputFd >= 0) {
+        terminal_writeOutputFd(term);
+    } else {
+        JNIEnv *env = getJNIEnv();
+        if (!term->outputBuffer) {
+            jobject buffer = (*env)->NewDirectByteBuffer(env, term->output, (jlong) term->outputSize);
+            term->outputBuffer = (*env)->NewGlobalRef(env, buffer);
+            (*env)->DeleteLocalRef(env, buffer);
+        }
+        (*env)->CallVoidMethod(env, term->outputCallback, outputWriteBufferMethod,
+                               term->outputBuffer, (jint) term->outputLen);
+        if ((*env)->ExceptionCheck(env)) {
+            (*env)->ExceptionClear(env);
+        }
+    }
+    term->outputLen = 0;
+}
+
+/*
+ * libvterm allocations go through here so each terminal knows what it holds.
+ * The size sits in front of the block, aligned like malloc's. libvterm expects
+ * zeroed memory, as from its default allocator.
+ */
+#define ALLOC_HEADER (2 * sizeof(size_t))
+
+static void *vterm_malloc(size_t size, void *allocdata) {
+    Terminal *term = (Terminal *) allocdata;
+    size_t *block = (size_t *) calloc(1, ALLOC_HEADER + size);
+    if (!block) {
+        return NULL;
+    }
+    block[0] = size;
+    term->vtermBytes += size;
+    return (char *) block + ALLOC_HEADER;
+}
+
+static void vterm_free_block(void *ptr, void *allocdata) {
+    if (!ptr) {
+        return;
+    }
+    Terminal *term = (Terminal *) allocdata;
+    size_t *block = (size_t *) ((char *) ptr - ALLOC_HEADER);
+    term->vtermBytes -= block[0];
+    free(block);
+}
+
+static VTermAllocatorFunctions vterm_allocator = {
+        .malloc = vterm_malloc,
+        .free = vterm_free_block,
+};
+
 #define COLOR_R(_argb) ((uint8_t) ((_argb>>16)&0xff))
 #define COLOR_G(_argb) ((uint8_t) ((_argb>>8)&0xff))
 #define COLOR_B(_argb) ((uint8_t) ((_argb)&0xff))
 
 
 static Terminal *new_terminal(jobject callbacks, jobject outputCallback,
-                              dimen_t rows, dimen_t cols, dimen_t scrollRows, int fg, int bg) {
+                              dimen_t rows, dimen_t cols, size_t scrollRows, int fg, int bg) {
     Terminal *term = (Terminal *) malloc(sizeof(Terminal));
     JNIEnv *env = getJNIEnv();
 
-    term->callbacks = (*env)->NewGlobalRef(env, callbacks);
-    term->outputCallback = (*env)->NewGlobalRef(env, outputCallback);
+    term->callbacks = (*env)->NewWeakGlobalRef(env, callbacks);
+    term->outputCallback = (*env)->NewWeakGlobalRef(env, outputCallback);
 
-    term->bufferSize = 4 * 1024;
-    term->buffer = (*env)->NewGlobalRef(env, (*env)->NewByteArray(env, term->bufferSize));
+    term->outputSize = OUTPUT_INITIAL_SIZE;
+    term->output = (char *) malloc(term->outputSize);
+    term->outputLen = 0;
+    term->outputBuffer = NULL;
+    term->outputFd = -1;
+    term->queue = NULL;
+    term->queueLen = 0;
+    term->queueSize = 0;
+    term->queueDropped = 0;
+    pthread_mutex_init(&term->ioLock, NULL);
 
     term->rows = rows;
     term->cols = cols;
+    scrollback_init(&term->scrollback, scrollRows);
+
+    pthread_mutex_init(&term->lock, NULL);
+    term->cells[0] = (jint *) calloc((size_t) rows * cols, sizeof(jint) * SNAPSHOT_STRIDE);
+    term->cells[1] = (jint *) calloc((size_t) rows * cols, sizeof(jint) * SNAPSHOT_STRIDE);
+    term->dirty = (uint8_t *) malloc(rows);
+    memset(term->dirty, 0x3, rows);
+    term->front = 0;
     term->scrollCur = 0;
-    term->scrollSize = scrollRows;
-
-    term->scrollLines = (ScrollbackLine **) calloc(term->scrollSize, sizeof(ScrollbackLine *));
+    term->pendingLines = 0;
+    pthread_mutex_init(&term->snapshotLock, NULL);
+    term->snapshot = NULL;
+    term->snapshotSize = 0;
+    memset(&term->update, 0, sizeof(ScreenUpdate));
+    term->seq = 0;
+    term->headless = false;
+    term->reader = NULL;
+    term->trace = NULL;
 
     /* Create VTerm */
-    VTerm *vt = vterm_new(term->rows, term->cols);
+    term->vtermBytes = 0;
+    VTerm *vt = vterm_new_with_allocator(term->rows, term->cols, &vterm_allocator, term);
     vterm_set_utf8(vt, 1);
     term->vt = vt;
 
@@ -364,6 +747,7 @@ static Terminal *new_terminal(jobject callbacks, jobject outputCallback,
     vterm_color_rgb(&color_fg, COLOR_R(fg), COLOR_G(fg), COLOR_B(fg));
     vterm_color_rgb(&color_bg, COLOR_R(bg), COLOR_G(bg), COLOR_B(bg));
     vterm_state_set_default_colors(vterm_obtain_state(term->vt), &color_fg, &color_bg);
+    terminal_updatePalette(term);
 
 
     /* Set up screen */
@@ -373,6 +757,9 @@ static Terminal *new_terminal(jobject callbacks, jobject outputCallback,
     vterm_screen_set_damage_merge(vts, VTERM_DAMAGE_SCROLL);
     vterm_screen_reset(vts, 1);
 
+    terminal_publish(term);
+    terminal_deliverUpdate(term);
+
     return term;
 }
 
@@ -381,190 +768,734 @@ static void free_terminal(Terminal *term) {
         return;
     }
 
-    vterm_free(term->vt);
+    terminal_stopReader(term);
+
+    trace_close(term->trace);
+
+    vterm_free(term->vt);
+
+    scrollback_free(&term->scrollback);
+
+    free(term->cells[0]);
+    free(term->cells[1]);
+    free(term->dirty);
+    pthread_mutex_destroy(&term->lock);
+    free(term->snapshot);
+    pthread_mutex_destroy(&term->snapshotLock);
+
+    JNIEnv *env = getJNIEnv();
+    (*env)->DeleteWeakGlobalRef(env, term->callbacks);
+
+    (*env)->DeleteWeakGlobalRef(env, term->outputCallback);
+
+    if (term->outputBuffer) {
+        (*env)->DeleteGlobalRef(env, term->outputBuffer);
+    }
+    free(term->output);
+    free(term->queue);
+    pthread_mutex_destroy(&term->ioLock);
+
+    free(term);
+
+}
+
+
+bool terminal_dispatchCharacter(Terminal *term, int mod, int character) {
+    vterm_keyboard_unichar(term->vt, (uint32_t) character, (VTermModifier) mod);
+    return true;
+}
+
+static bool terminal_dispatchKey(Terminal *term, int mod, int key) {
+    vterm_keyboard_key(term->vt, (VTermKey) key, (VTermModifier) mod);
+    return true;
+}
+
+static inline size_t encode_utf8(uint32_t c, char *out) {
+    if (c < 0x80) {
+        out[0] = (char) c;
+        return 1;
+    }
+    if (c < 0x800) {
+        out[0] = (char) (0xc0 | (c >> 6));
+        out[1] = (char) (0x80 | (c & 0x3f));
+        return 2;
+    }
+    if (c < 0x10000) {
+        out[0] = (char) (0xe0 | (c >> 12));
+        out[1] = (char) (0x80 | ((c >> 6) & 0x3f));
+        out[2] = (char) (0x80 | (c & 0x3f));
+        return 3;
+    }
+    out[0] = (char) (0xf0 | (c >> 18));
+    out[1] = (char) (0x80 | ((c >> 12) & 0x3f));
+    out[2] = (char) (0x80 | ((c >> 6) & 0x3f));
+    out[3] = (char) (0x80 | (c & 0x3f));
+    return 4;
+}
+
+static void terminal_dispatchText(Terminal *term, int mod, const jint *codePoints, size_t len) {
+    if (mod != VTERM_MOD_NONE) {
+        for (size_t i = 0; i < len; i++) {
+            vterm_keyboard_unichar(term->vt, (uint32_t) codePoints[i], (VTermModifier) mod);
+        }
+        return;
+    }
+
+    //没有修饰键时和 vterm_keyboard_unichar 一样只是 UTF-8 编码, 整段一起输出
+    char buf[TEXT_CHUNK * 4];
+    size_t n = 0;
+    for (size_t i = 0; i < len; i++) {
+        const uint32_t c = (uint32_t) codePoints[i];
+        if (c > 0x10ffff || (c >= 0xd800 && c <= 0xdfff)) {
+            continue;
+        }
+        if (n + 4 > sizeof(buf)) {
+            output_callback(buf, n, term);
+            n = 0;
+        }
+        n += encode_utf8(c, buf + n);
+    }
+    if (n > 0) {
+        output_callback(buf, n, term);
+    }
+}
+
+
+static status_t terminal_resize(Terminal *term, dimen_t rows, dimen_t cols, size_t scrollRows) {
+
+#if DEBUG_CALLBACKS
+    ALOGD("resize(%d, %d, %zu)", rows, cols, scrollRows);
+#endif
+
+    if (term->trace) {
+        trace_resize(term->trace, rows, cols);
+    }
+
+    pthread_mutex_lock(&term->lock);
+    scrollback_set_capacity(&term->scrollback, scrollRows);
+    pthread_mutex_unlock(&term->lock);
+
+    vterm_set_size(term->vt, rows, cols);
+
+    //尺寸变了两个缓冲区都要重建，在锁内直接填好再交换
+    pthread_mutex_lock(&term->lock);
+    term->rows = rows;
+    term->cols = cols;
+    for (int i = 0; i < 2; ++i) {
+        free(term->cells[i]);
+        term->cells[i] = (jint *) calloc((size_t) rows * cols, sizeof(jint) * SNAPSHOT_STRIDE);
+    }
+    free(term->dirty);
+    term->dirty = (uint8_t *) malloc(rows);
+    memset(term->dirty, 0x3, rows);
+    terminal_swapLocked(term, terminal_fillBack(term));
+    pthread_mutex_unlock(&term->lock);
+
+    terminal_deliverUpdate(term);
+
+    return 0;
+}
+
+static status_t terminal_onPushline(Terminal *term, dimen_t cols, const VTermScreenCell *cells) {
+#if DEBUG_CALLBACKS
+    ALOGD("onPushline %zu", term->scrollback.count);
+#endif
+    pthread_mutex_lock(&term->lock);
+    int ret = scrollback_push(&term->scrollback, cols, cells);
+    term->pendingLines += ret;
+    pthread_mutex_unlock(&term->lock);
+    return ret;
+}
+
+static status_t terminal_onPopline(Terminal *term, dimen_t cols, VTermScreenCell *cells) {
+#if DEBUG_CALLBACKS
+    ALOGD("onPopline %zu", term->scrollback.count);
+#endif
+    pthread_mutex_lock(&term->lock);
+    int ret = scrollback_pop(&term->scrollback, cols, cells);
+    term->pendingLines -= ret;
+    pthread_mutex_unlock(&term->lock);
+    return ret;
+}
+
+/*
+ * Scrollback line shown at row < 0, NULL above the scrollback or when its
+ * spilled page can't be read back. A spilled line stays valid until the next
+ * lookup, so callers look a row up once and read its cells from the line.
+ */
+static const ScrollbackLine *terminal_scrollLine(Terminal *term, int row) {
+    size_t scrollRow = (size_t) (-row);
+    if (scrollRow > scrollback_rows(&term->scrollback)) {
+        return NULL;
+    }
+    return scrollback_line(&term->scrollback, scrollRow - 1);
+}
+
+/*
+ * Cell at pos, line is terminal_scrollLine of pos.row when that is < 0.
+ * The caller holds term->lock.
+ */
+static void terminal_getRowCell(Terminal *term, const ScrollbackLine *line, VTermPos pos,
+                                VTermScreenCell *cell) {
+    // The UI may be asking for cell data while the model is changing
+    // underneath it, so we always fill with meaningful data.
+
+    if (pos.row < 0) {
+        if (line == NULL) {
+            // Invalid region above current scrollback
+            cell->width = 1;
+            cell->chars[0] = 0;
+#if DEBUG_SCROLLBACK
+            cell->bg.rgb.red = 255;
+#endif
+            return;
+        }
+        if ((size_t) pos.col < line->cols) {
+            // Valid scrollback cell
+            scroll_line_get_cell(line, (dimen_t) (pos.col), cell);
+#if DEBUG_SCROLLBACK
+            cell->bg.rgb.blue = 255;
+#endif
+            return;
+        } else {
+            // Extend last scrollback cell into invalid region
+            scroll_line_get_cell(line, (dimen_t) (line->cols - 1), cell);
+            cell->width = 1;
+            cell->chars[0] = 0;
+#if DEBUG_SCROLLBACK
+            cell->bg.rgb.green = 255;
+#endif
+            return;
+        }
+    }
+
+    if ((size_t) pos.row >= term->rows) {
+        // Invalid region below screen
+        cell->width = 1;
+        cell->chars[0] = 0;
+#if DEBUG_SCROLLBACK
+        cell->bg.rgb.red = 128;
+#endif
+        return;
+    }
+
+    // Valid screen cell
+    vterm_screen_get_cell(vterm_obtain_screen(term->vt), pos, cell);
+}
+
+static void terminal_getCellLocked(Terminal *term, VTermPos pos, VTermScreenCell *cell) {
+    terminal_getRowCell(term, pos.row < 0 ? terminal_scrollLine(term, pos.row) : NULL, pos, cell);
+}
+
+
+static inline int toArgb(const VTermColor *color) {
+    return (0xff << 24) | (color->rgb.red << 16) | (color->rgb.green << 8) | (color->rgb.blue);
+}
+
+/*
+ * Resolve the 256 indexed colors once, so a cell color is a single load
+ */
+static void terminal_updatePalette(Terminal *term) {
+    VTermState *state = vterm_obtain_state(term->vt);
+    VTermColor rgb;
+    for (int i = 0; i < 256; i++) {
+        vterm_state_get_palette_color(state, i, &rgb);
+        term->palette[i] = toArgb(&rgb);
+    }
+}
+
+static inline int resolve_color(const Terminal *term, const VTermColor *color) {
+    return VTERM_COLOR_IS_INDEXED(color) ? term->palette[color->indexed.idx] : toArgb(color);
+}
+
+static inline void resolve_colors(const Terminal *term, const VTermScreenCell *cell, int *fg, int *bg) {
+    const VTermColor *f = &cell->fg;
+    const VTermColor *b = &cell->bg;
+    if (cell->attrs.reverse) {
+        f = &cell->bg;
+        b = &cell->fg;
+    }
+    *fg = resolve_color(term, f);
+    *bg = resolve_color(term, b);
+}
+
+static inline void pack_cell(Terminal *term, const VTermScreenCell *cell, jint *out) {
+    int fg, bg;
+    resolve_colors(term, cell, &fg, &bg);
+
+    int flags = (uint8_t) cell->width;
+    if (cell->attrs.bold) flags |= SNAPSHOT_FLAG_BOLD;
+    if (cell->attrs.underline) flags |= SNAPSHOT_FLAG_UNDERLINE;
+    if (cell->attrs.strike) flags |= SNAPSHOT_FLAG_STRIKE;
+    for (int i = 1; i < VTERM_MAX_CHARS_PER_CELL && cell->chars[i]; i++) {
+        if (cell->chars[i] == 0xfe0f) {
+            flags |= SNAPSHOT_FLAG_EMOJI;
+            break;
+        }
+    }
+
+    out[0] = (jint) cell->chars[0];
+    out[1] = fg;
+    out[2] = bg;
+    out[3] = flags;
+}
+
+/*
+ * Live cell for callers holding the Java monitor, the parser is not running
+ * but a renderer may be reading the scrollback.
+ */
+static void terminal_getCell(Terminal *term, VTermPos pos, VTermScreenCell *cell) {
+    pthread_mutex_lock(&term->lock);
+    terminal_getCellLocked(term, pos, cell);
+    pthread_mutex_unlock(&term->lock);
+}
+
+static void terminal_markDirty(Terminal *term, int startRow, int endRow) {
+    if (startRow < 0) startRow = 0;
+    if (endRow > term->rows) endRow = term->rows;
+    for (int row = startRow; row < endRow; ++row) {
+        term->dirty[row] = 0x3;
+    }
+}
+
+/*
+ * Refresh the stale rows of the back buffer from the live screen. Only called
+ * from the thread driving the parser.
+ */
+static int terminal_fillBack(Terminal *term) {
+    const int back = term->front ^ 1;
+    const uint8_t bit = (uint8_t) (1 << back);
+    jint *cells = term->cells[back];
+
+    VTermScreen *vts = vterm_obtain_screen(term->vt);
+    VTermScreenCell cell;
+    VTermPos pos;
+    for (pos.row = 0; pos.row < term->rows; pos.row++) {
+        if (!(term->dirty[pos.row] & bit)) {
+            continue;
+        }
+        jint *out = cells + (size_t) pos.row * term->cols * SNAPSHOT_STRIDE;
+        for (pos.col = 0; pos.col < term->cols; pos.col++) {
+            memset(&cell, 0, sizeof(VTermScreenCell));
+            vterm_screen_get_cell(vts, pos, &cell);
+            pack_cell(term, &cell, out);
+            out += SNAPSHOT_STRIDE;
+        }
+        term->dirty[pos.row] &= ~bit;
+    }
+    return back;
+}
+
+static inline bool has_update(const ScreenUpdate *update) {
+    return update->damage.start_row < update->damage.end_row
+           || update->scroll != 0 || update->cursorMoved;
+}
+
+static void terminal_swapLocked(Terminal *term, int back) {
+    if (has_update(&term->update)) {
+        term->seq++;
+    }
+    term->front = back;
+    term->scrollCur = scrollback_rows(&term->scrollback);
+    term->pendingLines = 0;
+}
+
+static void terminal_publish(Terminal *term) {
+    if (term->headless) {
+        pthread_mutex_lock(&term->lock);
+        term->scrollCur = scrollback_rows(&term->scrollback);
+        term->pendingLines = 0;
+        pthread_mutex_unlock(&term->lock);
+        return;
+    }
+
+    const int back = terminal_fillBack(term);
+
+    pthread_mutex_lock(&term->lock);
+    terminal_swapLocked(term, back);
+    pthread_mutex_unlock(&term->lock);
+}
+
+/*
+ * Hand what changed since the last delivery to Java, after it is published so
+ * a redraw triggered by it sees the new screen.
+ */
+static void terminal_deliverUpdate(Terminal *term) {
+    ScreenUpdate *update = &term->update;
+    if (!has_update(update)) {
+        return;
+    }
+    if (term->headless) {
+        //光标留着, 挂上客户端时要用
+        memset(&update->damage, 0, sizeof(VTermRect));
+        update->scroll = 0;
+        update->cursorMoved = false;
+        return;
+    }
+#if DEBUG_CALLBACKS
+    ALOGW("deliverUpdate damage(%d,%d,%d,%d) scroll %d cursor %d", update->damage.start_row,
+          update->damage.end_row, update->damage.start_col, update->damage.end_col,
+          update->scroll, update->cursorMoved);
+#endif
+
+    JNIEnv *env = getJNIEnv();
+    (*env)->CallIntMethod(env, term->callbacks, updateMethod,
+                          update->damage.start_row, update->damage.end_row,
+                          update->damage.start_col, update->damage.end_col,
+                          update->scrollRect.start_row, update->scrollRect.end_row,
+                          update->scroll,
+                          update->cursorMoved ? update->cursor.row : -1,
+                          update->cursorMoved ? update->cursor.col : -1,
+                          update->cursorVisible, term->seq);
+    memset(update, 0, sizeof(ScreenUpdate));
+}
+
+/*
+ * Scrollback line at row < 0 as of the last publish, NULL when it is gone
+ */
+static const ScrollbackLine *terminal_publishedScrollLine(Terminal *term, int row) {
+    //发布之后又推入或弹出的行要换算成当前的行号
+    long current = -(long) row + term->pendingLines;
+    return current > 0 ? terminal_scrollLine(term, (int) -current) : NULL;
+}
+
+/*
+ * Published cell at pos, the caller holds term->lock. Scrollback rows are
+ * addressed as of the last publish, line is terminal_publishedScrollLine of
+ * pos.row when that is < 0.
+ */
+static void terminal_getPublishedCell(Terminal *term, const ScrollbackLine *line, VTermPos pos,
+                                      jint *out) {
+    if (pos.row >= 0 && pos.row < term->rows) {
+        memcpy(out, term->cells[term->front]
+                    + ((size_t) pos.row * term->cols + pos.col) * SNAPSHOT_STRIDE,
+               sizeof(jint) * SNAPSHOT_STRIDE);
+        return;
+    }
+
+    VTermScreenCell cell;
+    memset(&cell, 0, sizeof(VTermScreenCell));
+    terminal_getRowCell(term, line, pos, &cell);
+    pack_cell(term, &cell, out);
+}
 
-    for (int i = 0; i < term->scrollSize; ++i) {
-        free_scrollback_line(term->scrollLines[i]);
+static void terminal_parse(Terminal *term, const char *bytes, size_t len) {
+    if (term->trace) {
+        trace_input(term->trace, bytes, len);
     }
-    free(term->scrollLines);
+    while (len > 0) {
+        const size_t n = len < INPUT_SLICE ? len : INPUT_SLICE;
+        vterm_input_write(term->vt, bytes, n);
+        bytes += n;
+        len -= n;
+    }
+}
 
+/*
+ * Pty reader
+ */
 
-    JNIEnv *env = getJNIEnv();
-    (*env)->DeleteGlobalRef(env, term->callbacks);
+static inline long elapsed_nanos(const struct timespec *start) {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (now.tv_sec - start->tv_sec) * 1000000000L + (now.tv_nsec - start->tv_nsec);
+}
 
-    (*env)->DeleteGlobalRef(env, term->outputCallback);
+/*
+ * Whether fd has data that can be read without blocking
+ */
+static inline bool fd_readable(int fd) {
+    struct pollfd pfd = {.fd = fd, .events = POLLIN};
+    return poll(&pfd, 1, 0) > 0 && (pfd.revents & POLLIN);
+}
 
-    (*env)->DeleteGlobalRef(env, term->buffer);
+/*
+ * Read what the pty has, up to READER_BUDGET. The Java monitor is taken
+ * around each chunk, the same lock inputWrite runs under, so other calls can
+ * get in between. Damage is flushed once a batch is parsed, the pty drained,
+ * or the batch took READER_BATCH_NANOS. Returns 0, or -1 with *error set once
+ * the pty is closed.
+ */
+static int reader_service(PtyReader *reader, JNIEnv *env, jobject self, int *error) {
+    Terminal *term = reader->term;
+    char *buffer = reader->loop->buffer;
+
+    size_t total = 0;
+    bool drained = false;
+    int ret = 0;
+    while (total < READER_BUDGET) {
+        ssize_t n = read(reader->fd, buffer, READER_BUDGET - total);
+        if (n < 0 && errno == EINTR) {
+            continue;
+        }
+        if (n <= 0) {
+            if (n < 0 && errno == EAGAIN) {
+                drained = true;
+                break;
+            }
+            //从端关闭后主端读到 EOF 或 EIO
+            *error = n < 0 ? errno : 0;
+            ret = -1;
+            break;
+        }
 
-    free(term);
+        if (reader->pending == 0) {
+            clock_gettime(CLOCK_MONOTONIC, &reader->batchStart);
+        }
+        (*env)->MonitorEnter(env, self);
+        terminal_parse(term, buffer, (size_t) n);
+        (*env)->MonitorExit(env, self);
+        total += n;
+        reader->pending += n;
+
+        if (!fd_readable(reader->fd)) {
+            drained = true;
+            break;
+        }
+    }
 
+    if (reader->pending == 0) {
+        return ret;
+    }
+    const bool full = reader->pending >= reader->batch;
+    if (drained || full || ret != 0 || elapsed_nanos(&reader->batchStart) >= READER_BATCH_NANOS) {
+        (*env)->MonitorEnter(env, self);
+        vterm_screen_flush_damage(vterm_obtain_screen(term->vt));
+        terminal_publish(term);
+        terminal_deliverUpdate(term);
+        terminal_flushOutput(term);
+        (*env)->MonitorExit(env, self);
+        reader->pending = 0;
+
+        if (drained) {
+            reader->batch = reader->batch / 2 < READER_MIN_BATCH ? READER_MIN_BATCH : reader->batch / 2;
+        } else if (full) {
+            reader->batch = reader->batch * 2 > READER_MAX_BATCH ? READER_MAX_BATCH : reader->batch * 2;
+        }
+    }
+    return ret;
 }
 
-
-bool terminal_dispatchCharacter(Terminal *term, int mod, int character) {
-    vterm_keyboard_unichar(term->vt, (uint32_t) character, (VTermModifier) mod);
-    return true;
+/*
+ * Drop the reader from its loop, the caller holds loop->lock
+ */
+static void reader_removeLocked(PtyReader *reader) {
+    if (reader->closed) {
+        return;
+    }
+    epoll_ctl(reader->loop->epollFd, EPOLL_CTL_DEL, reader->fd, NULL);
+    reader->closed = true;
+    reader->loop->readers--;
 }
 
-static bool terminal_dispatchKey(Terminal *term, int mod, int key) {
-    vterm_keyboard_key(term->vt, (VTermKey) key, (VTermModifier) mod);
-    return true;
+/*
+ * The pty can take output again, send what was queued for it without the
+ * Java monitor. The terminal stays alive until the round is over.
+ */
+static void reader_drainOutput(PtyReader *reader) {
+    Terminal *term = reader->term;
+    pthread_mutex_lock(&term->ioLock);
+    if (term->outputFd != reader->fd) {
+        terminal_watchOutputLocked(term, false);
+    } else {
+        terminal_drainQueueLocked(term);
+    }
+    pthread_mutex_unlock(&term->ioLock);
 }
 
+static void reader_closed(PtyReader *reader, JNIEnv *env, int error) {
+    ReaderLoop *loop = reader->loop;
+    pthread_mutex_lock(&loop->lock);
+    reader_removeLocked(reader);
+    pthread_mutex_unlock(&loop->lock);
 
-static status_t terminal_resize(Terminal *term, dimen_t rows, dimen_t cols, dimen_t scrollRows) {
-
-#if DEBUG_CALLBACKS
-    ALOGD("resize(%d, %d, %d)", rows, cols, scrollRows);
-#endif
+    ALOGD("pty closed: %s", strerror(error));
+    (*env)->CallIntMethod(env, reader->term->callbacks, ptyClosedMethod, error);
+    if ((*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionClear(env);
+    }
+}
 
-    term->rows = rows;
-    term->cols = cols;
+static void *readerLoop_run(void *arg) {
+    ReaderLoop *loop = (ReaderLoop *) arg;
 
-    if (scrollRows > term->scrollSize) {//新滑动缓存大于原来的，直接从后往前复制原来的到新状态
-        ScrollbackLine **scrollLines = (ScrollbackLine **) malloc(
-                sizeof(ScrollbackLine *) * scrollRows);
+    JNIEnv *env;
+    JavaVMAttachArgs args = {.version = JNI_VERSION_1_6, .name = "PtyReader", .group = NULL};
+    //循环线程永不退出，作为守护线程挂上才不会挡住 JVM 退出
+    if ((*javaVM)->AttachCurrentThreadAsDaemon(javaVM, ATTACH_ENV(&env), &args) != JNI_OK) {
+        ALOGE("reader AttachCurrentThread failed");
+        return NULL;
+    }
 
-        dimen_t delta = scrollRows - term->scrollSize;
-        for (int n = term->scrollSize - 1; n >= 0; --n) {
-            scrollLines[n + delta] = term->scrollLines[n];
+    struct epoll_event events[READER_EVENTS];
+    for (;;) {
+        int n = epoll_wait(loop->epollFd, events, READER_EVENTS, -1);
+        if (n < 0 && errno != EINTR) {
+            ALOGE("epoll_wait failed: %s", strerror(errno));
+            break;
         }
 
-        free(term->scrollLines);
-        term->scrollLines = scrollLines;
-        term->scrollSize = scrollRows;
+        for (int i = 0; i < n; ++i) {
+            PtyReader *reader = (PtyReader *) events[i].data.ptr;
+            if (!reader) {
+                char buf[64];
+                while (read(loop->wakeFds[0], buf, sizeof(buf)) == sizeof(buf));
+                continue;
+            }
 
-    } else if (scrollRows < term->scrollSize) {
-        ScrollbackLine **scrollLines = (ScrollbackLine **) malloc(
-                sizeof(ScrollbackLine *) * scrollRows);
+            pthread_mutex_lock(&loop->lock);
+            const bool closed = reader->closed;
+            pthread_mutex_unlock(&loop->lock);
+            if (closed) {
+                continue;
+            }
 
-        dimen_t delta = term->scrollSize - scrollRows;
-        for (int i = 0; i < delta; ++i) {//新滑动小于原来的，释放多余的缓存，其他的复制到新状态
-            free_scrollback_line(term->scrollLines[i]);
-        }
+            if (events[i].events & EPOLLOUT) {
+                reader_drainOutput(reader);
+            }
 
-        for (int n = scrollRows - 1; n >= 0; --n) {
-            scrollLines[n] = term->scrollLines[n + delta];
+            //只持有弱引用，Java 对象已被回收时停止读取，等 cleaner 释放
+            jobject self = (*env)->NewLocalRef(env, reader->term->outputCallback);
+            if (!self) {
+                pthread_mutex_lock(&loop->lock);
+                reader_removeLocked(reader);
+                pthread_mutex_unlock(&loop->lock);
+                continue;
+            }
+
+            int error = 0;
+            if (events[i].events & (EPOLLIN | EPOLLHUP | EPOLLERR)) {
+                if (reader_service(reader, env, self, &error) != 0) {
+                    reader_closed(reader, env, error);
+                }
+            }
+            (*env)->DeleteLocalRef(env, self);
         }
 
-        free(term->scrollLines);
-        term->scrollLines = scrollLines;
-        term->scrollSize = scrollRows;
+        pthread_mutex_lock(&loop->lock);
+        loop->round++;
+        pthread_cond_broadcast(&loop->roundDone);
+        while (loop->retired) {
+            PtyReader *reader = loop->retired;
+            loop->retired = reader->nextRetired;
+            free(reader);
+        }
+        pthread_mutex_unlock(&loop->lock);
     }
 
-
-    vterm_set_size(term->vt, rows, cols);
-
-    return 0;
+    (*javaVM)->DetachCurrentThread(javaVM);
+    return NULL;
 }
 
-static status_t terminal_onPushline(Terminal *term, dimen_t cols, const VTermScreenCell *cells) {
-    ScrollbackLine *line = NULL;
-#if DEBUG_CALLBACKS
-    ALOGD("onPushline %d", term->scrollCur);
-#endif
-    if (term->scrollCur == term->scrollSize) {
-        /* Recycle old row if it's the right size */
-        if (term->scrollLines[term->scrollCur - 1]->cols == cols) {
-            line = term->scrollLines[term->scrollCur - 1];
-        } else {
-            free_scrollback_line(term->scrollLines[term->scrollCur - 1]);
+static void readerLoops_init(void) {
+    for (int i = 0; i < READER_LOOPS; ++i) {
+        ReaderLoop *loop = &readerLoops[i];
+        pthread_mutex_init(&loop->lock, NULL);
+        pthread_cond_init(&loop->roundDone, NULL);
+        loop->buffer = (char *) malloc(READER_BUFFER_SIZE);
+        loop->epollFd = epoll_create1(EPOLL_CLOEXEC);
+        if (!loop->buffer || loop->epollFd < 0 || pipe(loop->wakeFds) != 0) {
+            ALOGE("reader loop init failed: %s", strerror(errno));
+            loop->epollFd = -1;
+            continue;
+        }
+        fcntl(loop->wakeFds[0], F_SETFL, O_NONBLOCK);
+
+        struct epoll_event event = {.events = EPOLLIN, .data.ptr = NULL};
+        if (epoll_ctl(loop->epollFd, EPOLL_CTL_ADD, loop->wakeFds[0], &event) != 0
+            || pthread_create(&loop->thread, NULL, readerLoop_run, loop) != 0) {
+            ALOGE("reader loop start failed");
+            close(loop->epollFd);
+            loop->epollFd = -1;
         }
-
-        memmove(term->scrollLines + 1, term->scrollLines,
-                sizeof(ScrollbackLine *) * (term->scrollCur - 1));
-    } else if (term->scrollCur > 0) {
-        memmove(term->scrollLines + 1, term->scrollLines,
-                sizeof(ScrollbackLine *) * term->scrollCur);
-    }
-
-    if (line == NULL) {
-        line = new_scrollback_line(cols);
     }
+}
 
-    term->scrollLines[0] = line;
+static status_t terminal_startReader(Terminal *term, int fd) {
+    pthread_once(&readerLoopsOnce, readerLoops_init);
 
-    if (term->scrollCur < term->scrollSize) {
-        term->scrollCur++;
+    //读者最少的那个循环
+    ReaderLoop *loop = NULL;
+    for (int i = 0; i < READER_LOOPS; ++i) {
+        ReaderLoop *candidate = &readerLoops[i];
+        if (candidate->epollFd >= 0 && (!loop || candidate->readers < loop->readers)) {
+            loop = candidate;
+        }
     }
-
-    scroll_line_copy_from(line, cols, cells);
-    return 1;
-}
-
-static status_t terminal_onPopline(Terminal *term, dimen_t cols, VTermScreenCell *cells) {
-#if DEBUG_CALLBACKS
-    ALOGD("onPopline %d", term->scrollCur);
-#endif
-    if (term->scrollCur == 0) {
-        return 0;
+    if (!loop) {
+        return -1;
     }
 
-    ScrollbackLine *line = term->scrollLines[0];
-    term->scrollCur--;
-    memmove(term->scrollLines, term->scrollLines + 1, sizeof(ScrollbackLine *) * term->scrollCur);
-
-    dimen_t n = scroll_line_copy_to(line, cols, cells);
-    for (dimen_t col = n; col < cols; col++) {
-        cells[col].chars[0] = 0;
-        cells[col].width = 1;
+    PtyReader *reader = (PtyReader *) calloc(1, sizeof(PtyReader));
+    if (!reader) {
+        return -1;
     }
+    reader->term = term;
+    reader->loop = loop;
+    reader->fd = fd;
+    reader->batch = READER_MIN_BATCH;
+
+    pthread_mutex_lock(&term->ioLock);
+    if (term->reader) {
+        pthread_mutex_unlock(&term->ioLock);
+        ALOGE("reader already started");
+        free(reader);
+        return -1;
+    }
+    pthread_mutex_lock(&loop->lock);
+    struct epoll_event event = {.events = EPOLLIN, .data.ptr = reader};
+    if (epoll_ctl(loop->epollFd, EPOLL_CTL_ADD, fd, &event) != 0) {
+        pthread_mutex_unlock(&loop->lock);
+        pthread_mutex_unlock(&term->ioLock);
+        ALOGE("reader epoll_ctl failed: %s", strerror(errno));
+        free(reader);
+        return -1;
+    }
+    loop->readers++;
+    pthread_mutex_unlock(&loop->lock);
 
-    free_scrollback_line(line);
-
-    return 1;
+    term->reader = reader;
+    if (term->queueLen > 0) {
+        terminal_watchOutputLocked(term, true);
+    }
+    pthread_mutex_unlock(&term->ioLock);
+    return 0;
 }
 
-static void terminal_getCellLocked(Terminal *term, VTermPos pos, VTermScreenCell *cell) {
-    // The UI may be asking for cell data while the model is changing
-    // underneath it, so we always fill with meaningful data.
-
-    if (pos.row < 0) {
-        size_t scrollRow = (size_t) (-pos.row);
-        if (scrollRow > term->scrollCur) {
-            // Invalid region above current scrollback
-            cell->width = 1;
-#if DEBUG_SCROLLBACK
-            cell->bg.rgb.red = 255;
-#endif
-            return;
-        }
-
-        ScrollbackLine *line = term->scrollLines[scrollRow - 1];
-        if ((size_t) pos.col < line->cols) {
-            // Valid scrollback cell
-            scroll_line_get_cell(line, (dimen_t) (pos.col), cell);
-#if DEBUG_SCROLLBACK
-            cell->bg.rgb.blue = 255;
-#endif
-            return;
-        } else {
-            // Extend last scrollback cell into invalid region
-            scroll_line_get_cell(line, (dimen_t) (line->cols - 1), cell);
-            cell->width = 1;
-            cell->chars[0] = 0;
-#if DEBUG_SCROLLBACK
-            cell->bg.rgb.green = 255;
-#endif
-            return;
-        }
+/*
+ * Take the pty out of its loop and wait until the loop is done with it. Must
+ * not be called holding the Java monitor. On the loop's own thread, from
+ * onPtyClosed say, it can't wait and leaves the free to the loop.
+ */
+static void terminal_stopReader(Terminal *term) {
+    pthread_mutex_lock(&term->ioLock);
+    PtyReader *reader = term->reader;
+    term->reader = NULL;
+    pthread_mutex_unlock(&term->ioLock);
+    if (!reader) {
+        return;
     }
 
-    if ((size_t) pos.row >= term->rows) {
-        // Invalid region below screen
-        cell->width = 1;
-        cell->chars[0] = 0;
-#if DEBUG_SCROLLBACK
-        cell->bg.rgb.red = 128;
-#endif
+    ReaderLoop *loop = reader->loop;
+    pthread_mutex_lock(&loop->lock);
+    reader_removeLocked(reader);
+    if (pthread_equal(pthread_self(), loop->thread)) {
+        reader->nextRetired = loop->retired;
+        loop->retired = reader;
+        pthread_mutex_unlock(&loop->lock);
         return;
     }
+    const unsigned long round = loop->round;
+    const char c = 0;
+    while (write(loop->wakeFds[1], &c, 1) < 0 && errno == EINTR);
+    while (loop->round == round) {
+        pthread_cond_wait(&loop->roundDone, &loop->lock);
+    }
+    pthread_mutex_unlock(&loop->lock);
 
-    // Valid screen cell
-    vterm_screen_get_cell(vterm_obtain_screen(term->vt), pos, cell);
+    free(reader);
 }
 
-
 /*
  * JNI glue
  */
@@ -574,7 +1505,7 @@ aterm_terminal_Terminal_nativeInit(JNIEnv *env, jclass clazz,
                                    jobject callbacks, jobject outputCallback,
                                    jint rows, jint cols, jint scrollRows, jint fg, jint bg) {
     Terminal *term = new_terminal(callbacks, outputCallback,
-                                  (dimen_t) rows, (dimen_t) cols, (dimen_t) scrollRows, fg, bg);
+                                  (dimen_t) rows, (dimen_t) cols, (size_t) scrollRows, fg, bg);
     return ptr_to_jlong(term);
 }
 
@@ -588,26 +1519,36 @@ static jint aterm_terminal_Terminal_nativeDestroy(JNIEnv *env, jclass clazz, jlo
 static jint aterm_terminal_Terminal_nativeResize(JNIEnv *env, jclass clazz, jlong ptr,
                                                  jint rows, jint cols, jint scrollRows) {
     Terminal *term = jlong_to_ptr(ptr);
-    return terminal_resize(term, (dimen_t) rows, (dimen_t) cols, (dimen_t) scrollRows);
+    return terminal_resize(term, (dimen_t) rows, (dimen_t) cols, (size_t) scrollRows);
 }
 
-static inline int toArgb(const VTermColor *color) {
-    return (0xff << 24) | (color->rgb.red << 16) | (color->rgb.green << 8) | (color->rgb.blue);
+static jint aterm_terminal_Terminal_nativeEnableScrollbackSpill(JNIEnv *env, jclass clazz,
+                                                               jlong ptr, jstring path,
+                                                               jint maxRows) {
+    Terminal *term = jlong_to_ptr(ptr);
+    const char *cpath = (*env)->GetStringUTFChars(env, path, NULL);
+    pthread_mutex_lock(&term->lock);
+    int ret = scrollback_enable_spill(&term->scrollback, cpath, (size_t) maxRows);
+    pthread_mutex_unlock(&term->lock);
+    (*env)->ReleaseStringUTFChars(env, path, cpath);
+    return ret;
 }
 
-static inline bool isCellStyleEqual(const VTermScreenCell *a, const VTermScreenCell *b) {
-    if (vterm_color_is_equal(&a->fg, &b->fg) != 1) return false;
-    if (vterm_color_is_equal(&a->bg, &b->bg) != 1) return false;
-
-    if (a->attrs.bold != b->attrs.bold) return false;
-    if (a->attrs.underline != b->attrs.underline) return false;
-    if (a->attrs.italic != b->attrs.italic) return false;
-    if (a->attrs.blink != b->attrs.blink) return false;
-    if (a->attrs.reverse != b->attrs.reverse) return false;
-    if (a->attrs.strike != b->attrs.strike) return false;
-    if (a->attrs.font != b->attrs.font) return false;
+static jint aterm_terminal_Terminal_nativeStartTrace(JNIEnv *env, jclass clazz, jlong ptr,
+                                                     jstring path) {
+    Terminal *term = jlong_to_ptr(ptr);
+    trace_close(term->trace);
+    const char *cpath = (*env)->GetStringUTFChars(env, path, NULL);
+    term->trace = trace_open(cpath, term->rows, term->cols);
+    (*env)->ReleaseStringUTFChars(env, path, cpath);
+    return term->trace ? 0 : -1;
+}
 
-    return true;
+static jint aterm_terminal_Terminal_nativeStopTrace(JNIEnv *env, jclass clazz, jlong ptr) {
+    Terminal *term = jlong_to_ptr(ptr);
+    int ret = trace_close(term->trace);
+    term->trace = NULL;
+    return ret;
 }
 
 static jint aterm_terminal_Terminal_nativeGetCellRun(JNIEnv *env,
@@ -624,8 +1565,8 @@ static jint aterm_terminal_Terminal_nativeGetCellRun(JNIEnv *env,
     jsize dataLength = (*env)->GetArrayLength(env, dataArray);
 
 
-    VTermScreenCell firstCell = {};
-    VTermScreenCell cell;
+    jint first[SNAPSHOT_STRIDE] = {0};  //col past the end leaves an empty run
+    jint cell[SNAPSHOT_STRIDE];
 
     VTermPos pos = {
             .row = row,
@@ -634,63 +1575,47 @@ static jint aterm_terminal_Terminal_nativeGetCellRun(JNIEnv *env,
 
     size_t dataSize = 0;
     size_t colSize = 0;
+
+    pthread_mutex_lock(&term->lock);
+    const ScrollbackLine *line = row < 0 ? terminal_publishedScrollLine(term, row) : NULL;
     while ((size_t) pos.col < term->cols) {
-        memset(&cell, 0, sizeof(VTermScreenCell));
-        terminal_getCellLocked(term, pos, &cell);
+        terminal_getPublishedCell(term, line, pos, cell);
 
         if (colSize == 0) {
-            VTermColor fg = cell.attrs.reverse ? cell.bg : cell.fg;
-            VTermColor bg = cell.attrs.reverse ? cell.fg : cell.bg;
-
-            VTermColor color;
-            if (VTERM_COLOR_IS_INDEXED(&fg)) {
-                vterm_state_get_palette_color(vterm_obtain_state(term->vt),
-                                              fg.indexed.idx, &color);
-                (*env)->SetIntField(env, run, cellRunFgField, toArgb(&color));
-            } else {
-                (*env)->SetIntField(env, run, cellRunFgField, toArgb(&fg));
-            }
-            if (VTERM_COLOR_IS_INDEXED(&bg)) {
-                vterm_state_get_palette_color(vterm_obtain_state(term->vt),
-                                              bg.indexed.idx, &color);
-                (*env)->SetIntField(env, run, cellRunBgField, toArgb(&color));
-            } else {
-                (*env)->SetIntField(env, run, cellRunBgField, toArgb(&bg));
-            }
-
-            //bold
-            (*env)->SetBooleanField(env, run, cellRunBoldField, (jboolean) (cell.attrs.bold == 1));
-            //underline
-            (*env)->SetBooleanField(env, run, cellRunUnderlineField,
-                                    (jboolean) (cell.attrs.underline == 1));
-            //strike
-            (*env)->SetBooleanField(env, run, cellRunStrikeField,
-                                    (jboolean) (cell.attrs.strike == 1));
-
-            memcpy(&firstCell, &cell, sizeof(VTermScreenCell));
-        } else {
-            if (!isCellStyleEqual(&cell, &firstCell)) {
-                break;
-            }
+            memcpy(first, cell, sizeof(first));
+        } else if (cell[1] != first[1] || cell[2] != first[2]
+                   || (cell[3] & ~SNAPSHOT_CELL_MASK) != (first[3] & ~SNAPSHOT_CELL_MASK)) {
+            break;
         }
 
-//        if (VTERM_COLOR_IS_INDEXED(&cell.fg)) {
-//            ALOGD("color %d %d", VTERM_COLOR_IS_RGB(&cell.fg), VTERM_COLOR_IS_DEFAULT_FG(&cell.fg));
-//        }
-
         // Only include cell chars if they fit into run
-        const uint32_t rawCell = cell.chars[0];
         if (dataSize < dataLength) {
-            widths[dataSize] = cell.width;
-            data[dataSize++] = rawCell;
+            int width = cell[3] & 0xff;
+            if (width < 1) width = 1;
+
+            widths[dataSize] = (jbyte) width;
+            data[dataSize++] = cell[0];
 
 
-            colSize += cell.width;
-            pos.col += cell.width;
+            colSize += width;
+            pos.col += width;
         } else {
             break;
         }
     }
+    pthread_mutex_unlock(&term->lock);
+
+    (*env)->SetIntField(env, run, cellRunFgField, first[1]);
+    (*env)->SetIntField(env, run, cellRunBgField, first[2]);
+    //bold
+    (*env)->SetBooleanField(env, run, cellRunBoldField,
+                            (jboolean) ((first[3] & SNAPSHOT_FLAG_BOLD) != 0));
+    //underline
+    (*env)->SetBooleanField(env, run, cellRunUnderlineField,
+                            (jboolean) ((first[3] & SNAPSHOT_FLAG_UNDERLINE) != 0));
+    //strike
+    (*env)->SetBooleanField(env, run, cellRunStrikeField,
+                            (jboolean) ((first[3] & SNAPSHOT_FLAG_STRIKE) != 0));
 
     (*env)->SetIntField(env, run, cellRunDataSizeField, (jint) dataSize);
     (*env)->SetIntField(env, run, cellRunColSizeField, (jint) colSize);
@@ -702,6 +1627,64 @@ static jint aterm_terminal_Terminal_nativeGetCellRun(JNIEnv *env,
     return 0;
 }
 
+/*
+ * Fill snapshot.data with rows [startRow, endRow) as far as they fit and set
+ * snapshot.seq, return the column count used for the layout.
+ */
+static jint aterm_terminal_Terminal_nativeGetSnapshot(JNIEnv *env, jclass clazz, jlong ptr,
+                                                      jint startRow, jint endRow,
+                                                      jobject snapshot) {
+    Terminal *term = jlong_to_ptr(ptr);
+    jintArray out = (jintArray) (*env)->GetObjectField(env, snapshot, snapshotDataField);
+    const size_t len = (size_t) (*env)->GetArrayLength(env, out);
+
+    pthread_mutex_lock(&term->snapshotLock);
+    pthread_mutex_lock(&term->lock);
+    const jint seq = term->seq;
+    const int cols = term->cols;
+    const size_t rowSize = (size_t) cols * SNAPSHOT_STRIDE;
+    const jint *cells = term->cells[term->front];
+
+    size_t need = endRow > startRow ? (size_t) (endRow - startRow) * rowSize : 0;
+    if (rowSize > 0 && need > len) {
+        need = len / rowSize * rowSize;
+    }
+    if (need > term->snapshotSize) {
+        jint *buffer = (jint *) realloc(term->snapshot, need * sizeof(jint));
+        if (!buffer) {
+            pthread_mutex_unlock(&term->lock);
+            pthread_mutex_unlock(&term->snapshotLock);
+            (*env)->DeleteLocalRef(env, out);
+            return -1;
+        }
+        term->snapshot = buffer;
+        term->snapshotSize = need;
+    }
+    jint *data = term->snapshot;
+
+    VTermPos pos;
+    size_t i = 0;
+    for (pos.row = startRow; pos.row < endRow && i + rowSize <= need; pos.row++) {
+        if (pos.row >= 0 && pos.row < term->rows) {
+            memcpy(data + i, cells + pos.row * rowSize, sizeof(jint) * rowSize);
+            i += rowSize;
+            continue;
+        }
+        const ScrollbackLine *line = pos.row < 0 ? terminal_publishedScrollLine(term, pos.row) : NULL;
+        for (pos.col = 0; pos.col < cols; pos.col++) {
+            terminal_getPublishedCell(term, line, pos, data + i);
+            i += SNAPSHOT_STRIDE;
+        }
+    }
+    pthread_mutex_unlock(&term->lock);
+
+    (*env)->SetIntArrayRegion(env, out, 0, (jsize) i, data);
+    pthread_mutex_unlock(&term->snapshotLock);
+    (*env)->SetIntField(env, snapshot, snapshotSeqField, seq);
+    (*env)->DeleteLocalRef(env, out);
+    return cols;
+}
+
 static jint aterm_terminal_Terminal_nativeGetRows(JNIEnv *env, jclass clazz, jlong ptr) {
     Terminal *term = jlong_to_ptr(ptr);
     return term->rows;
@@ -715,25 +1698,109 @@ static jint aterm_terminal_Terminal_nativeGetCols(JNIEnv *env, jclass clazz, jlo
 static jint
 aterm_terminal_Terminal_nativeGetScrollRows(JNIEnv *env, jclass clazz, jlong ptr) {
     Terminal *term = jlong_to_ptr(ptr);
-    return term->scrollSize;
+    pthread_mutex_lock(&term->lock);
+    jint ret = (jint) scrollback_max_rows(&term->scrollback);
+    pthread_mutex_unlock(&term->lock);
+    return ret;
 }
 
 static jint
 aterm_terminal_Terminal_nativeGetScrollCur(JNIEnv *env, jclass clazz, jlong ptr) {
     Terminal *term = jlong_to_ptr(ptr);
-    return term->scrollCur;
+    return (jint) term->scrollCur;
 }
 
 static jboolean aterm_terminal_Terminal_nativeDispatchCharacter(JNIEnv *env, jclass clazz,
                                                                 jlong ptr, jint mod, jint c) {
     Terminal *term = jlong_to_ptr(ptr);
-    return (jboolean) terminal_dispatchCharacter(term, mod, c);
+    bool ret = terminal_dispatchCharacter(term, mod, c);
+    terminal_flushOutput(term);
+    return (jboolean) ret;
+}
+
+static jboolean aterm_terminal_Terminal_nativeDispatchText(JNIEnv *env, jclass clazz,
+                                                           jlong ptr, jint mod,
+                                                           jintArray codePoints, jint off, jint len,
+                                                           jboolean paste) {
+    Terminal *term = jlong_to_ptr(ptr);
+    if (paste) {
+        vterm_keyboard_start_paste(term->vt);
+    }
+
+    jint chunk[TEXT_CHUNK];
+    bool ret = true;
+    for (jint pos = 0; pos < len;) {
+        const jint n = len - pos < TEXT_CHUNK ? len - pos : TEXT_CHUNK;
+        (*env)->GetIntArrayRegion(env, codePoints, off + pos, n, chunk);
+        if ((*env)->ExceptionCheck(env)) {
+            ret = false;
+            break;
+        }
+        terminal_dispatchText(term, mod, chunk, (size_t) n);
+        pos += n;
+    }
+
+    if (paste) {
+        vterm_keyboard_end_paste(term->vt);
+    }
+    terminal_flushOutput(term);
+    return (jboolean) ret;
+}
+
+static void aterm_terminal_Terminal_nativePaste(JNIEnv *env, jclass clazz, jlong ptr,
+                                                jboolean start) {
+    Terminal *term = jlong_to_ptr(ptr);
+    if (start) {
+        vterm_keyboard_start_paste(term->vt);
+    } else {
+        vterm_keyboard_end_paste(term->vt);
+    }
+    terminal_flushOutput(term);
+}
+
+/*
+ * Wait until the output fd can take more bytes. Called without the Java monitor,
+ * so it takes the fd rather than the terminal, which may be closed meanwhile.
+ * Returns 1 when writable or there is no fd, 0 on timeout.
+ */
+/*
+ * Wait up to timeoutMillis for the output queue to drain, draining it here as
+ * the fd takes more. Returns whether it is empty. Called without the Java monitor.
+ */
+static jint aterm_terminal_Terminal_nativeAwaitOutputWritable(JNIEnv *env, jclass clazz, jlong ptr,
+                                                              jint timeoutMillis) {
+    Terminal *term = jlong_to_ptr(ptr);
+    struct timespec start;
+    clock_gettime(CLOCK_MONOTONIC, &start);
+
+    pthread_mutex_lock(&term->ioLock);
+    for (;;) {
+        const int fd = term->outputFd;
+        if (fd < 0 || terminal_drainQueueLocked(term)) {
+            pthread_mutex_unlock(&term->ioLock);
+            return 1;
+        }
+        pthread_mutex_unlock(&term->ioLock);
+
+        struct timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        const long remaining = timeoutMillis - ((now.tv_sec - start.tv_sec) * 1000L
+                                                + (now.tv_nsec - start.tv_nsec) / 1000000);
+        if (remaining <= 0) {
+            return 0;
+        }
+        struct pollfd pfd = {.fd = fd, .events = POLLOUT};
+        poll(&pfd, 1, (int) remaining);
+        pthread_mutex_lock(&term->ioLock);
+    }
 }
 
 static jboolean aterm_terminal_Terminal_nativeDispatchKey(JNIEnv *env, jclass clazz,
                                                           jlong ptr, jint mod, jint c) {
     Terminal *term = jlong_to_ptr(ptr);
-    return (jboolean) terminal_dispatchKey(term, mod, c);
+    bool ret = terminal_dispatchKey(term, mod, c);
+    terminal_flushOutput(term);
+    return (jboolean) ret;
 }
 
 static jint aterm_terminal_Terminal_nativeGetLineText(JNIEnv *env, jclass clazz,
@@ -751,15 +1818,18 @@ static jint aterm_terminal_Terminal_nativeGetLineText(JNIEnv *env, jclass clazz,
             .row = row,
             .col = startCol,
     };
+    pthread_mutex_lock(&term->lock);
+    const ScrollbackLine *line = row < 0 ? terminal_scrollLine(term, row) : NULL;
     while (pos.col < endCol && count < len) {
         memset(&cell, 0, sizeof(VTermScreenCell));
-        terminal_getCellLocked(term, pos, &cell);
+        terminal_getRowCell(term, line, pos, &cell);
         if (cell.chars[0] != 0 && cell.chars[0] != (uint32_t) -1) {
             codePoints[count] = cell.chars[0];
             count++;
         }
         pos.col += cell.width;
     }
+    pthread_mutex_unlock(&term->lock);
 
     (*env)->ReleaseIntArrayElements(env, out, codePoints, 0);
 
@@ -771,6 +1841,7 @@ static void aterm_terminal_Terminal_nativeMouseMove(JNIEnv *env, jclass clazz,
                                                     jint mod) {
     Terminal *term = jlong_to_ptr(ptr);
     vterm_mouse_move(term->vt, row, col, (VTermModifier) mod);
+    terminal_flushOutput(term);
 
 }
 
@@ -779,6 +1850,7 @@ static void aterm_terminal_Terminal_nativeMouseButton(JNIEnv *env, jclass clazz,
                                                       jint mod) {
     Terminal *term = jlong_to_ptr(ptr);
     vterm_mouse_button(term->vt, button, pressed, (VTermModifier) mod);
+    terminal_flushOutput(term);
 
 }
 
@@ -792,7 +1864,7 @@ static jint aterm_terminal_Terminal_nativeGetValidCol(JNIEnv *env, jclass clazz,
     };
     VTermScreenCell cell;
     while (pos.col < term->cols) {
-        terminal_getCellLocked(term, pos, &cell);
+        terminal_getCell(term, pos, &cell);
 
         const int cend = pos.col + cell.width;
         if (pos.col < col && col < cend) {
@@ -826,8 +1898,15 @@ static void aterm_terminal_Terminal_nativeSetDefaultColors(JNIEnv *env, jclass c
 
     vterm_state_set_default_colors(vterm_obtain_state(term->vt), &color_fg,
                                    &color_bg);
+    terminal_updatePalette(term);
 //    vterm_state_reset(vterm_obtain_state(term->vt), 0);
 
+    // Published colors are resolved, so every row changes
+    VTermRect all = {.start_row = 0, .end_row = term->rows, .start_col = 0, .end_col = term->cols};
+    term_damage(all, term);
+    terminal_publish(term);
+    terminal_deliverUpdate(term);
+
 }
 
 static void aterm_terminal_Terminal_nativeGetDefaultColors(JNIEnv *env, jclass clazz,
@@ -854,6 +1933,19 @@ static void aterm_terminal_Terminal_nativeGetDefaultColors(JNIEnv *env, jclass c
     (*env)->SetIntArrayRegion(env, colors, 0, 2, out_colors);
 }
 
+/*
+ * Parse bytes and publish the result, the caller holds the Java monitor
+ */
+static size_t terminal_inputWrite(Terminal *term, const char *bytes, size_t len) {
+    terminal_parse(term, bytes, len);
+    vterm_screen_flush_damage(vterm_obtain_screen(term->vt));
+    terminal_publish(term);
+    terminal_deliverUpdate(term);
+    //终端应答 (DA, DSR 等)
+    terminal_flushOutput(term);
+    return len;
+}
+
 static int aterm_terminal_Terminal_nativeInputWrite(JNIEnv *env, jclass clazz, jlong ptr,
                                                     jbyteArray data, jint off, jint len) {
 
@@ -861,14 +1953,104 @@ static int aterm_terminal_Terminal_nativeInputWrite(JNIEnv *env, jclass clazz, j
 
     jbyte *bytes = (*env)->GetByteArrayElements(env, data, NULL);
 
-    size_t ret = vterm_input_write(term->vt, (const char *) (bytes + off),
-                                   (size_t) len);
-    vterm_screen_flush_damage(vterm_obtain_screen(term->vt));
+    size_t ret = terminal_inputWrite(term, (const char *) (bytes + off), (size_t) len);
 
     (*env)->ReleaseByteArrayElements(env, data, bytes, JNI_ABORT);
     return ret;
 }
 
+static int aterm_terminal_Terminal_nativeInputWriteDirect(JNIEnv *env, jclass clazz, jlong ptr,
+                                                          jobject buffer, jint off, jint len) {
+
+    Terminal *term = jlong_to_ptr(ptr);
+
+    //直接缓冲区, 不经过 Java 堆拷贝
+    char *bytes = (char *) (*env)->GetDirectBufferAddress(env, buffer);
+    if (!bytes) {
+        ALOGE("inputWrite: not a direct buffer");
+        return -1;
+    }
+
+    return (int) terminal_inputWrite(term, bytes + off, (size_t) len);
+}
+
+static jint aterm_terminal_Terminal_nativeStartReader(JNIEnv *env, jclass clazz, jlong ptr,
+                                                     jint fd) {
+    Terminal *term = jlong_to_ptr(ptr);
+    return terminal_startReader(term, fd);
+}
+
+static void aterm_terminal_Terminal_nativeStopReader(JNIEnv *env, jclass clazz, jlong ptr) {
+    Terminal *term = jlong_to_ptr(ptr);
+    terminal_stopReader(term);
+}
+
+static void aterm_terminal_Terminal_nativeSetHeadless(JNIEnv *env, jclass clazz, jlong ptr,
+                                                     jboolean headless) {
+    Terminal *term = jlong_to_ptr(ptr);
+    if (term->headless == (bool) headless) {
+        return;
+    }
+    term->headless = headless;
+    if (headless) {
+        return;
+    }
+
+    //刚挂上的客户端什么都没画过, 整屏都算损坏
+    ScreenUpdate *update = &term->update;
+    vterm_screen_flush_damage(vterm_obtain_screen(term->vt));
+    update->damage = (VTermRect) {.start_row = 0, .end_row = term->rows,
+                                  .start_col = 0, .end_col = term->cols};
+    update->scroll = 0;
+    update->cursorMoved = true;
+    vterm_state_get_cursorpos(vterm_obtain_state(term->vt), &update->cursor);
+    terminal_publish(term);
+    terminal_deliverUpdate(term);
+}
+
+/*
+ * Heap bytes held by the session. Called under the Java monitor, the
+ * scrollback is also read by the UI thread so it is measured under lock.
+ */
+static jlong aterm_terminal_Terminal_nativeGetNativeMemory(JNIEnv *env, jclass clazz, jlong ptr) {
+    Terminal *term = jlong_to_ptr(ptr);
+    size_t bytes = sizeof(Terminal) + term->vtermBytes + term->outputSize;
+    bytes += 2 * (size_t) term->rows * term->cols * sizeof(jint) * SNAPSHOT_STRIDE + term->rows;
+    pthread_mutex_lock(&term->ioLock);
+    bytes += term->queueSize;
+    if (term->reader) {
+        bytes += sizeof(PtyReader);
+    }
+    pthread_mutex_unlock(&term->ioLock);
+    pthread_mutex_lock(&term->snapshotLock);
+    bytes += term->snapshotSize * sizeof(jint);
+    pthread_mutex_unlock(&term->snapshotLock);
+    pthread_mutex_lock(&term->lock);
+    bytes += scrollback_memory(&term->scrollback);
+    pthread_mutex_unlock(&term->lock);
+    return (jlong) bytes;
+}
+
+static void aterm_terminal_Terminal_nativeSetOutputFd(JNIEnv *env, jclass clazz, jlong ptr,
+                                                     jint fd) {
+    Terminal *term = jlong_to_ptr(ptr);
+    terminal_flushOutput(term);
+
+    pthread_mutex_lock(&term->ioLock);
+    if (term->outputFd >= 0 && !terminal_drainQueueLocked(term)) {
+        ALOGW("setOutputFd: %zu queued bytes dropped", term->queueLen);
+        term->queueLen = 0;
+        term->queueDropped = 0;
+    }
+    terminal_watchOutputLocked(term, false);
+    //写不进去的排队，不阻塞持有 Java 锁的调用方
+    if (fd >= 0) {
+        fcntl(fd, F_SETFL, fcntl(fd, F_GETFL) | O_NONBLOCK);
+    }
+    term->outputFd = fd;
+    pthread_mutex_unlock(&term->ioLock);
+}
+
 static int aterm_terminal_Terminal_nativeWordOffset(JNIEnv *env, jclass clazz, jlong ptr,
                                                     jint row, int col, jint dir) {
 
@@ -880,7 +2062,7 @@ static int aterm_terminal_Terminal_nativeWordOffset(JNIEnv *env, jclass clazz, j
     VTermScreenCell cell;
     while (pos.col >= 0 && pos.col < term->cols) {
         memset(&cell, 0, sizeof(VTermScreenCell));
-        terminal_getCellLocked(term, pos, &cell);
+        terminal_getCell(term, pos, &cell);
 
 //        ALOGD("cell %d,dir=%d", cell.chars[0], dir);
         if (cell.chars[0] == ' ') {
@@ -899,6 +2081,9 @@ static int aterm_terminal_Terminal_nativeWordOffset(JNIEnv *env, jclass clazz, j
 }
 
 static void initConstant(JNIEnv *env, jclass c, const char *fieldName, int value) {
+    if (c == NULL) {
+        return;
+    }
     jfieldID field = (*env)->GetStaticFieldID(env, c, fieldName, "I");
     (*env)->SetStaticIntField(env, c, field, value);
 }
@@ -929,8 +2114,15 @@ static JNINativeMethod gMethods[] = {
 
         {"nativeResize",            "(JIII)I",                           (void *) aterm_terminal_Terminal_nativeResize},
 
+        {"nativeEnableScrollbackSpill", "(JLjava/lang/String;I)I",      (void *) aterm_terminal_Terminal_nativeEnableScrollbackSpill},
+
+        {"nativeStartTrace",        "(JLjava/lang/String;)I",            (void *) aterm_terminal_Terminal_nativeStartTrace},
+        {"nativeStopTrace",         "(J)I",                              (void *) aterm_terminal_Terminal_nativeStopTrace},
+
         {"nativeGetCellRun",        "(JIILaterm/terminal/ScreenCell;)I", (void *) aterm_terminal_Terminal_nativeGetCellRun},
 
+        {"nativeGetSnapshot",       "(JIILaterm/terminal/ScreenSnapshot;)I", (void *) aterm_terminal_Terminal_nativeGetSnapshot},
+
         {"nativeGetRows",           "(J)I",                              (void *) aterm_terminal_Terminal_nativeGetRows},
 
         {"nativeGetCols",           "(J)I",                              (void *) aterm_terminal_Terminal_nativeGetCols},
@@ -943,6 +2135,12 @@ static JNINativeMethod gMethods[] = {
 
         {"nativeDispatchKey",       "(JII)Z",                            (void *) aterm_terminal_Terminal_nativeDispatchKey},
 
+        {"nativeDispatchText",      "(JI[IIIZ)Z",                        (void *) aterm_terminal_Terminal_nativeDispatchText},
+
+        {"nativePaste",             "(JZ)V",                             (void *) aterm_terminal_Terminal_nativePaste},
+
+        {"nativeAwaitOutputWritable", "(JI)I",                           (void *) aterm_terminal_Terminal_nativeAwaitOutputWritable},
+
         {"nativeGetLineText",       "(JIII[I)I",                         (void *) aterm_terminal_Terminal_nativeGetLineText},
 
         {"nativeMouseMove",         "(JIII)V",                           (void *) aterm_terminal_Terminal_nativeMouseMove},
@@ -956,6 +2154,15 @@ static JNINativeMethod gMethods[] = {
         {"nativeGetDefaultColors",  "(J[I)V",                            (void *) aterm_terminal_Terminal_nativeGetDefaultColors},
 
         {"nativeInputWrite",        "(J[BII)I",                          (void *) aterm_terminal_Terminal_nativeInputWrite},
+        {"nativeInputWriteDirect",  "(JLjava/nio/ByteBuffer;II)I",       (void *) aterm_terminal_Terminal_nativeInputWriteDirect},
+
+        {"nativeStartReader",       "(JI)I",                             (void *) aterm_terminal_Terminal_nativeStartReader},
+        {"nativeStopReader",        "(J)V",                              (void *) aterm_terminal_Terminal_nativeStopReader},
+
+        {"nativeSetHeadless",       "(JZ)V",                             (void *) aterm_terminal_Terminal_nativeSetHeadless},
+
+        {"nativeSetOutputFd",       "(JI)V",                             (void *) aterm_terminal_Terminal_nativeSetOutputFd},
+        {"nativeGetNativeMemory",   "(J)J",                              (void *) aterm_terminal_Terminal_nativeGetNativeMemory},
 
         {"nativeWordOffset",        "(JIII)I",                           (void *) aterm_terminal_Terminal_nativeWordOffset},
 };
@@ -966,10 +2173,7 @@ int register_aterm_terminal_Terminal(JNIEnv *env) {
 
     terminalCallbacksClass = (*env)->NewGlobalRef(env, localClass);
 
-    damageMethod = (*env)->GetMethodID(env, terminalCallbacksClass, "damage", "(IIII)I");
-    moveRectMethod = (*env)->GetMethodID(env, terminalCallbacksClass, "moveRect", "(IIIIIIII)I");
-    moveCursorMethod = (*env)->GetMethodID(env, terminalCallbacksClass, "moveCursor",
-                                           "(IIIII)I");
+    updateMethod = (*env)->GetMethodID(env, terminalCallbacksClass, "update", "(IIIIIIIIIII)I");
     setTermPropBooleanMethod = (*env)->GetMethodID(env, terminalCallbacksClass,
                                                    "setTermPropBoolean", "(IZ)I");
     setTermPropIntMethod = (*env)->GetMethodID(env, terminalCallbacksClass, "setTermPropInt",
@@ -979,6 +2183,7 @@ int register_aterm_terminal_Terminal(JNIEnv *env) {
     setTermPropColorMethod = (*env)->GetMethodID(env, terminalCallbacksClass, "setTermPropColor",
                                                  "(IIII)I");
     bellMethod = (*env)->GetMethodID(env, terminalCallbacksClass, "bell", "()I");
+    ptyClosedMethod = (*env)->GetMethodID(env, terminalCallbacksClass, "ptyClosed", "(I)I");
 
     (*env)->DeleteLocalRef(env, localClass);
 
@@ -997,16 +2202,27 @@ int register_aterm_terminal_Terminal(JNIEnv *env) {
 
     (*env)->DeleteLocalRef(env, cellRunLocal);
 
+    jclass snapshotLocal = (*env)->FindClass(env, "aterm/terminal/ScreenSnapshot");
+    snapshotDataField = (*env)->GetFieldID(env, snapshotLocal, "data", "[I");
+    snapshotSeqField = (*env)->GetFieldID(env, snapshotLocal, "seq", "I");
+    (*env)->DeleteLocalRef(env, snapshotLocal);
+
 
-    jclass outputCallback = (*env)->FindClass(env, "aterm/terminal/OutputCallback");
-    outputCallbackClass = (*env)->NewGlobalRef(env, outputCallback);
+    jclass terminalLocal = (*env)->FindClass(env, "aterm/terminal/AbstractTerminal");
+    terminalClass = (*env)->NewGlobalRef(env, terminalLocal);
 
-    outputWriteMethod = (*env)->GetMethodID(env, outputCallbackClass, "writeToPty", "([BI)V");
+    outputWriteBufferMethod = (*env)->GetMethodID(env, terminalClass, "writeToPty",
+                                                  "(Ljava/nio/ByteBuffer;I)V");
 
-    (*env)->DeleteLocalRef(env, outputCallback);
+    (*env)->DeleteLocalRef(env, terminalLocal);
 
     //init keys constant
     jclass keysClass = (*env)->FindClass(env, "aterm/terminal/TerminalKeys");
+    if (keysClass == NULL) {
+        // It needs android.view, which a desktop JVM running the core alone doesn't have
+        (*env)->ExceptionClear(env);
+        ALOGW("TerminalKeys not found, key constants not set");
+    }
     initConstant(env, keysClass, "VTERM_KEY_NONE", VTERM_KEY_NONE);
     initConstant(env, keysClass, "VTERM_KEY_ENTER", VTERM_KEY_ENTER);
     initConstant(env, keysClass, "VTERM_KEY_TAB", VTERM_KEY_TAB);
@@ -0,0 +1,133 @@
+/*
+ * Scrollback push throughput, lines/sec, for several history sizes, and
+ * the bytes one pushed line occupies.
+ *
+ * "memmove" is the pointer array the terminal used before the ring buffer:
+ * every push shifted the whole array down by one slot, and every line
+ * stored a full cell (code, attrs, width, two colours) per column.
+ *
+ *   cc -O2 -Ilibvterm/include bench/scrollback_bench.c scrollback.c -o scrollback_bench
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "scrollback.h"
+
+#define COLS 80
+
+typedef struct {
+    uint32_t code;
+    VTermScreenCellAttrs attrs;
+    char width;
+    VTermColor fg, bg;
+} LegacyCell;
+
+typedef struct {
+    dimen_t cols;
+
+    LegacyCell cells[0];
+} LegacyLine;
+
+typedef struct {
+    LegacyLine **lines;
+    size_t cur;
+    size_t size;
+} LegacyScrollback;
+
+static void legacy_push(LegacyScrollback *sb, dimen_t cols, const VTermScreenCell *cells) {
+    LegacyLine *line = NULL;
+    if (sb->cur == sb->size) {
+        if (sb->lines[sb->cur - 1]->cols == cols) {
+            line = sb->lines[sb->cur - 1];
+        } else {
+            free(sb->lines[sb->cur - 1]);
+        }
+        memmove(sb->lines + 1, sb->lines, sizeof(LegacyLine *) * (sb->cur - 1));
+    } else if (sb->cur > 0) {
+        memmove(sb->lines + 1, sb->lines, sizeof(LegacyLine *) * sb->cur);
+    }
+    if (line == NULL) {
+        line = (LegacyLine *) malloc(sizeof(LegacyLine) + sizeof(LegacyCell) * cols);
+        line->cols = cols;
+    }
+    sb->lines[0] = line;
+    if (sb->cur < sb->size) {
+        sb->cur++;
+    }
+    for (int i = 0; i < cols; ++i) {
+        line->cells[i].code = cells[i].chars[0];
+        line->cells[i].width = cells[i].width;
+        line->cells[i].attrs = cells[i].attrs;
+        line->cells[i].fg = cells[i].fg;
+        line->cells[i].bg = cells[i].bg;
+    }
+}
+
+static double now() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static void fill_line(VTermScreenCell *cells, int seed) {
+    memset(cells, 0, sizeof(VTermScreenCell) * COLS);
+    for (int i = 0; i < COLS; ++i) {
+        cells[i].width = 1;
+        vterm_color_indexed(&cells[i].fg, 7);
+        vterm_color_indexed(&cells[i].bg, 0);
+    }
+    //typical log line: text over two thirds of the width, trailing blanks
+    for (int i = 0; i < COLS * 2 / 3; ++i) {
+        cells[i].chars[0] = (uint32_t) ('!' + (seed + i) % 90);
+    }
+}
+
+int main(int argc, char **argv) {
+    static const size_t sizes[] = {1000, 10000, 50000, 65535};
+    const int pushes = argc > 1 ? atoi(argv[1]) : 200000;
+
+    VTermScreenCell *cells = calloc(COLS, sizeof(VTermScreenCell));
+    fill_line(cells, 0);
+
+    printf("%10s %16s %16s %8s\n", "scrollback", "memmove l/s", "ring l/s", "speedup");
+    size_t compactBytes = 0;
+    for (size_t s = 0; s < sizeof(sizes) / sizeof(sizes[0]); ++s) {
+        const size_t size = sizes[s];
+
+        LegacyScrollback legacy = {
+                .lines = calloc(size, sizeof(LegacyLine *)),
+                .cur = 0,
+                .size = size,
+        };
+        double t0 = now();
+        for (int i = 0; i < pushes; ++i) {
+            legacy_push(&legacy, COLS, cells);
+        }
+        double legacySec = now() - t0;
+        for (size_t i = 0; i < legacy.cur; ++i) {
+            free(legacy.lines[i]);
+        }
+        free(legacy.lines);
+
+        Scrollback ring;
+        scrollback_init(&ring, size);
+        t0 = now();
+        for (int i = 0; i < pushes; ++i) {
+            scrollback_push(&ring, COLS, cells);
+        }
+        double ringSec = now() - t0;
+        compactBytes = scroll_line_bytes(scrollback_get(&ring, 0));
+        scrollback_free(&ring);
+
+        printf("%10zu %16.0f %16.0f %7.1fx\n", size,
+               pushes / legacySec, pushes / ringSec, legacySec / ringSec);
+    }
+
+    printf("bytes/line: full cells %zu, compact %zu\n",
+           sizeof(LegacyLine) + sizeof(LegacyCell) * COLS, compactBytes);
+
+    free(cells);
+    return 0;
+}
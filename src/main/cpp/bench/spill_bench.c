@@ -0,0 +1,118 @@
+/*
+ * Random access into spilled scrollback pages.
+ *
+ * Fills a small in-memory history plus a large spill file, then reads one
+ * cell from random cold rows, and from rows walked in scroll order, the
+ * way the view does when scrolling back.
+ *
+ *   bench/spill_bench [rows] [lookups]
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "scrollback.h"
+
+#define COLS 100
+#define HOT_ROWS 1000
+
+static double now() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static long rss_kb() {
+    long pages = 0;
+    FILE *f = fopen("/proc/self/statm", "r");
+    if (f != NULL) {
+        if (fscanf(f, "%*s %ld", &pages) != 1) {
+            pages = 0;
+        }
+        fclose(f);
+    }
+    return pages * (sysconf(_SC_PAGESIZE) / 1024);
+}
+
+static void fill_line(VTermScreenCell *cells, unsigned n) {
+    memset(cells, 0, sizeof(VTermScreenCell) * COLS);
+    int len = snprintf(NULL, 0, "%u: spilled line", n);
+    char text[64];
+    snprintf(text, sizeof(text), "%u: spilled line", n);
+    for (int i = 0; i < COLS; ++i) {
+        cells[i].width = 1;
+        cells[i].chars[0] = i < len ? (uint32_t) text[i] : 0;
+        vterm_color_indexed(&cells[i].fg, (uint8_t) (i < 8 ? 2 : 7));
+        vterm_color_indexed(&cells[i].bg, 0);
+    }
+}
+
+int main(int argc, char **argv) {
+    const unsigned rows = argc > 1 ? (unsigned) atoi(argv[1]) : 2000000;
+    const unsigned lookups = argc > 2 ? (unsigned) atoi(argv[2]) : 1000000;
+
+    char path[] = "/tmp/spill_benchXXXXXX";
+    close(mkstemp(path));
+
+    Scrollback sb;
+    scrollback_init(&sb, HOT_ROWS);
+    if (scrollback_enable_spill(&sb, path, rows) != 0) {
+        fprintf(stderr, "enable spill failed\n");
+        return 1;
+    }
+
+    VTermScreenCell *cells = calloc(COLS, sizeof(VTermScreenCell));
+    long rss0 = rss_kb();
+    double t0 = now();
+    for (unsigned i = 0; i < rows + HOT_ROWS; ++i) {
+        fill_line(cells, i);
+        scrollback_push(&sb, COLS, cells);
+    }
+    double pushSec = now() - t0;
+    const size_t total = scrollback_rows(&sb);
+    printf("pushed %u lines: %.0f lines/s, %zu rows kept, rss +%ld KiB\n",
+           rows + HOT_ROWS, (rows + HOT_ROWS) / pushSec, total, rss_kb() - rss0);
+
+    VTermScreenCell cell;
+    unsigned misses = 0;
+    srand(1);
+    t0 = now();
+    for (unsigned i = 0; i < lookups; ++i) {
+        size_t row = HOT_ROWS + (size_t) rand() % (total - HOT_ROWS);
+        const ScrollbackLine *line = scrollback_line(&sb, row);
+        //row 0 is the newest line, check the number it was written with
+        unsigned n = 0;
+        for (dimen_t col = 0; col < COLS; ++col) {
+            scroll_line_get_cell(line, col, &cell);
+            if (cell.chars[0] == ':') {
+                break;
+            }
+            n = n * 10 + (cell.chars[0] - '0');
+        }
+        if (n != rows + HOT_ROWS - 1 - row) {
+            misses++;
+        }
+    }
+    double randomSec = now() - t0;
+
+    t0 = now();
+    size_t row = total - 1;
+    for (unsigned i = 0; i < lookups; ++i) {
+        const ScrollbackLine *line = scrollback_line(&sb, row);
+        for (dimen_t col = 0; col < COLS; ++col) {
+            scroll_line_get_cell(line, col, &cell);
+        }
+        row = row == HOT_ROWS ? total - 1 : row - 1;
+    }
+    double scrollSec = now() - t0;
+
+    printf("random cold row lookups: %.0f/s, %u wrong\n", lookups / randomSec, misses);
+    printf("sequential cold rows, %d cells each: %.0f rows/s\n", COLS, lookups / scrollSec);
+    printf("rss after reads +%ld KiB\n", rss_kb() - rss0);
+
+    scrollback_free(&sb);
+    free(cells);
+    return misses != 0;
+}
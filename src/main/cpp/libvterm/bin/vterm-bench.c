@@ -0,0 +1,184 @@
+// Require getopt(3) and clock_gettime(2)
+#define _XOPEN_SOURCE 600
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include <errno.h>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <time.h>
+#include <unistd.h>
+
+#include "vterm.h"
+
+/* Times vterm_input_write over a log-like stream, or over the contents of a
+ * file given with -f, and prints MiB/s.
+ *
+ *   -p        parser only, the callbacks just eat their input
+ *   -s        parser and state, no screen
+ *   -m MiB    size of the generated stream (default 64)
+ *   -u        generated lines carry some non-ASCII text
+ *   -c COLS   -r ROWS  terminal size (default 80x25)
+ *   -n COUNT  repeat the input COUNT times (default 3)
+ */
+
+static size_t text_eaten;
+
+static int parser_text(const char bytes[], size_t len, void *user)
+{
+  const unsigned char *b = (const unsigned char *)bytes;
+  size_t i = 0;
+  while(i < len && b[i] >= 0x20 && b[i] != 0x7f)
+    i++;
+  text_eaten += i;
+  return i ? i : 1;
+}
+
+static int parser_control(unsigned char control, void *user)
+{
+  return 1;
+}
+
+static int parser_escape(const char *bytes, size_t len, void *user)
+{
+  return 1;
+}
+
+static int parser_csi(const char *leader, const long args[], int argcount,
+    const char *intermed, char command, void *user)
+{
+  return 1;
+}
+
+static int parser_osc(const char *command, size_t cmdlen, void *user)
+{
+  return 1;
+}
+
+static int parser_dcs(const char *command, size_t cmdlen, void *user)
+{
+  return 1;
+}
+
+static VTermParserCallbacks parser_cbs = {
+  .text    = &parser_text,
+  .control = &parser_control,
+  .escape  = &parser_escape,
+  .csi     = &parser_csi,
+  .osc     = &parser_osc,
+  .dcs     = &parser_dcs,
+};
+
+static char *generate(size_t size, int unicode, size_t *lenp)
+{
+  static const char *levels[] = {
+    "\x1b[32mINFO\x1b[m ", "\x1b[32mINFO\x1b[m ", "\x1b[32mINFO\x1b[m ", "\x1b[33mWARN\x1b[m ", "\x1b[1;31mERROR\x1b[m",
+  };
+  char *buffer = malloc(size + 256);
+  size_t len = 0;
+  unsigned int n = 0;
+
+  while(len < size) {
+    len += sprintf(buffer + len,
+        "2024-01-01 12:%02u:%02u.%03u %s [worker-%u] request %u served in %u ms",
+        n / 60 % 60, n % 60, n % 1000, levels[n % 5], n % 8, n, n * 7 % 500);
+    if(unicode && n % 4 == 0)
+      len += sprintf(buffer + len, " \xe2\x9c\x93 \xe4\xb8\xad\xe6\x96\x87 caf\xc3\xa9");
+    len += sprintf(buffer + len, "\r\n");
+    n++;
+  }
+
+  *lenp = len;
+  return buffer;
+}
+
+static char *slurp(const char *path, size_t *lenp)
+{
+  int fd = open(path, O_RDONLY);
+  struct stat st;
+  if(fd == -1 || fstat(fd, &st) == -1) {
+    fprintf(stderr, "Cannot open %s - %s\n", path, strerror(errno));
+    exit(1);
+  }
+
+  char *buffer = malloc(st.st_size);
+  size_t len = 0;
+  while(len < (size_t)st.st_size) {
+    ssize_t n = read(fd, buffer + len, st.st_size - len);
+    if(n <= 0)
+      break;
+    len += n;
+  }
+  close(fd);
+
+  *lenp = len;
+  return buffer;
+}
+
+static double now(void)
+{
+  struct timespec ts;
+  clock_gettime(CLOCK_PROCESS_CPUTIME_ID, &ts);
+  return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+int main(int argc, char *argv[])
+{
+  int rows = 25, cols = 80;
+  int count = 3;
+  int parser_only = 0, no_screen = 0, unicode = 0;
+  size_t size = 64;
+  const char *file = NULL;
+
+  int opt;
+  while((opt = getopt(argc, argv, "psm:uc:r:n:f:")) != -1) {
+    switch(opt) {
+      case 'p': parser_only = 1; break;
+      case 's': no_screen = 1; break;
+      case 'm': size = atoi(optarg); break;
+      case 'u': unicode = 1; break;
+      case 'c': cols = atoi(optarg); break;
+      case 'r': rows = atoi(optarg); break;
+      case 'n': count = atoi(optarg); break;
+      case 'f': file = optarg; break;
+      default:
+        fprintf(stderr, "Usage: %s [-p|-s] [-m MiB] [-u] [-c COLS] [-r ROWS] [-n COUNT] [-f FILE]\n", argv[0]);
+        return 1;
+    }
+  }
+
+  size_t len;
+  char *buffer = file ? slurp(file, &len) : generate(size << 20, unicode, &len);
+
+  VTerm *vt = vterm_new(rows, cols);
+  vterm_set_utf8(vt, 1);
+
+  if(parser_only)
+    vterm_parser_set_callbacks(vt, &parser_cbs, NULL);
+  else if(no_screen)
+    vterm_state_reset(vterm_obtain_state(vt), 1);
+  else
+    vterm_screen_reset(vterm_obtain_screen(vt), 1);
+
+  // Feed it in pty-sized pieces, the way a terminal sees it
+  const size_t chunk = 4096;
+  double best = 0;
+  for(int i = 0; i < count; i++) {
+    double start = now();
+    for(size_t pos = 0; pos < len; pos += chunk)
+      vterm_input_write(vt, buffer + pos, len - pos < chunk ? len - pos : chunk);
+    double rate = len / (now() - start) / (1 << 20);
+    if(rate > best)
+      best = rate;
+  }
+
+  printf("%s: %.1f MiB in %s mode, best of %d: %.1f MiB/s\n",
+      file ? file : "generated", len / (double)(1 << 20),
+      parser_only ? "parser" : no_screen ? "state" : "screen", count, best);
+
+  vterm_free(vt);
+  free(buffer);
+  return 0;
+}
@@ -0,0 +1,195 @@
+/* Generates src/unicode_width.inc from the interval tables in src/unicode.c
+ *
+ *   find-unicode-widths     print the table
+ *   find-unicode-widths -c  check the compiled-in table against the intervals
+ *   find-unicode-widths -b  time UTF-8 decoding plus width lookups, table
+ *                           against intervals
+ */
+
+#define _POSIX_C_SOURCE 199309L  /* clock_gettime */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "src/unicode.c"
+#include "src/encoding.c"
+
+#define BLOCKS (UNICODE_LIMIT >> WIDTH_BLOCK_SHIFT)
+#define BLOCK_SIZE (1 << WIDTH_BLOCK_SHIFT)
+
+static uint8_t bits_of(uint32_t codepoint)
+{
+  uint8_t bits = unicode_width_bisearch(codepoint) + 1;
+  if(unicode_is_combining_bisearch(codepoint))
+    bits |= WIDTH_COMBINING;
+  return bits;
+}
+
+static int check(void)
+{
+  int errors = 0;
+
+  // A little past the end too, that goes through the intervals again
+  for(uint32_t codepoint = 0; codepoint < UNICODE_LIMIT + 0x1000; codepoint++) {
+    int width = vterm_unicode_width(codepoint);
+    int combining = vterm_unicode_is_combining(codepoint);
+    if(width != unicode_width_bisearch(codepoint) ||
+       combining != unicode_is_combining_bisearch(codepoint)) {
+      if(errors++ < 10)
+        fprintf(stderr, "U+%04X: width %d combining %d, expected %d %d\n",
+            codepoint, width, combining,
+            unicode_width_bisearch(codepoint), unicode_is_combining_bisearch(codepoint));
+    }
+  }
+
+  printf("%d mismatches\n", errors);
+  return errors != 0;
+}
+
+static double now(void)
+{
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+// UTF-8 of every step'th code point in [first, last], repeated to fill len bytes
+static size_t fill_utf8(char *buffer, size_t len, uint32_t first, uint32_t last, int step)
+{
+  size_t pos = 0;
+  uint32_t codepoint = first;
+  while(pos + 3 <= len) {
+    if(codepoint < 0x800) {
+      buffer[pos++] = 0xC0 | (codepoint >> 6);
+      buffer[pos++] = 0x80 | (codepoint & 0x3F);
+    }
+    else {
+      buffer[pos++] = 0xE0 | (codepoint >> 12);
+      buffer[pos++] = 0x80 | ((codepoint >> 6) & 0x3F);
+      buffer[pos++] = 0x80 | (codepoint & 0x3F);
+    }
+    codepoint += step;
+    if(codepoint > last)
+      codepoint = first;
+  }
+  return pos;
+}
+
+static double time_widths(const char *bytes, size_t len, int table)
+{
+  VTermEncoding *enc = vterm_lookup_encoding(ENC_UTF8, 'u');
+  uint64_t data[4];
+  uint32_t cp[4096];
+  long total = 0;
+  int reps = 100;
+
+  double start = now();
+  for(int rep = 0; rep < reps; rep++) {
+    size_t pos = 0;
+    if(enc->init)
+      (*enc->init)(enc, data);
+    while(pos < len) {
+      int cpi = 0;
+      (*enc->decode)(enc, data, cp, &cpi, 4096, bytes, &pos, len);
+      if(table)
+        for(int i = 0; i < cpi; i++)
+          total += vterm_unicode_width(cp[i]) + vterm_unicode_is_combining(cp[i]);
+      else
+        for(int i = 0; i < cpi; i++)
+          total += unicode_width_bisearch(cp[i]) + unicode_is_combining_bisearch(cp[i]);
+    }
+  }
+  double elapsed = now() - start;
+
+  if(total == 0)
+    fprintf(stderr, "No widths\n");
+  return len * (double)reps / elapsed / (1 << 20);
+}
+
+static int bench(void)
+{
+  static const struct {
+    const char *name;
+    uint32_t first, last;
+    int step;
+  } texts[] = {
+    { "CJK",     0x4E00, 0x9FFF, 7 },
+    { "Hangul",  0xAC00, 0xD7A3, 3 },
+    { "Box",     0x2500, 0x257F, 1 },
+    { "Latin-1", 0x00C0, 0x024F, 1 },
+  };
+
+  size_t size = 1 << 20;
+  char *bytes = malloc(size);
+
+  printf("%-8s %12s %12s\n", "", "intervals", "table");
+  for(size_t i = 0; i < sizeof(texts) / sizeof(texts[0]); i++) {
+    size_t len = fill_utf8(bytes, size, texts[i].first, texts[i].last, texts[i].step);
+    double before = time_widths(bytes, len, 0);
+    double after = time_widths(bytes, len, 1);
+    printf("%-8s %7.1f MiB/s %7.1f MiB/s\n", texts[i].name, before, after);
+  }
+
+  free(bytes);
+  return 0;
+}
+
+int main(int argc, char *argv[])
+{
+  if(argc > 1 && strcmp(argv[1], "-c") == 0)
+    return check();
+  if(argc > 1 && strcmp(argv[1], "-b") == 0)
+    return bench();
+
+  static uint8_t blocks[BLOCKS];
+  static uint8_t table[256][BLOCK_SIZE];
+  int ntable = 0;
+
+  for(int block = 0; block < BLOCKS; block++) {
+    uint8_t bits[BLOCK_SIZE];
+    for(int i = 0; i < BLOCK_SIZE; i++)
+      bits[i] = bits_of((block << WIDTH_BLOCK_SHIFT) + i);
+
+    int found;
+    for(found = 0; found < ntable; found++)
+      if(memcmp(table[found], bits, BLOCK_SIZE) == 0)
+        break;
+
+    if(found == ntable) {
+      if(ntable == 256) {
+        fprintf(stderr, "More than 256 distinct blocks\n");
+        return 1;
+      }
+      memcpy(table[ntable++], bits, BLOCK_SIZE);
+    }
+    blocks[block] = found;
+  }
+
+  printf("// Generated by find-unicode-widths.c, do not edit\n\n");
+
+  printf("static const uint8_t width_blocks[%d] = {\n", BLOCKS);
+  for(int block = 0; block < BLOCKS; block += 16) {
+    printf(" ");
+    for(int i = block; i < block + 16; i++)
+      printf(" %3d,", blocks[i]);
+    printf("\n");
+  }
+  printf("};\n\n");
+
+  printf("static const uint8_t width_table[%d][%d] = {\n", ntable, BLOCK_SIZE);
+  for(int t = 0; t < ntable; t++) {
+    printf("  {\n");
+    for(int i = 0; i < BLOCK_SIZE; i += 32) {
+      printf("   ");
+      for(int j = i; j < i + 32; j++)
+        printf(" %d,", table[t][j]);
+      printf("\n");
+    }
+    printf("  },\n");
+  }
+  printf("};\n");
+
+  return 0;
+}
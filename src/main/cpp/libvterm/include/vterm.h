@@ -374,6 +374,9 @@ typedef struct {
   int (*bell)(void *user);
   int (*resize)(int rows, int cols, VTermPos *delta, void *user);
   int (*setlineinfo)(int row, const VTermLineInfo *newinfo, const VTermLineInfo *oldinfo, void *user);
+  // count single-width glyphs of one char each, from pos along the row; info
+  // has no chars. Return 0 to have them sent through putglyph one by one
+  int (*putglyphs)(const uint32_t chars[], int count, VTermGlyphInfo *info, VTermPos pos, void *user);
 } VTermStateCallbacks;
 
 VTermState *vterm_obtain_state(VTerm *vt);
@@ -54,6 +54,20 @@ static void decode_utf8(VTermEncoding *enc, void *data_,
       printf(" UTF-8 char: U+%04x\n", c);
 #endif
       data->bytes_remaining = 0;
+
+      // Copy the rest of a printable ASCII run without going through the
+      // decoder state for each byte
+      size_t p = *pos + 1;
+      int i = *cpi;
+      while(p < bytelen && i < cplen) {
+        c = bytes[p];
+        if(c < 0x20 || c >= 0x7f)
+          break;
+        cp[i++] = c;
+        p++;
+      }
+      *pos = p - 1;
+      *cpi = i;
     }
 
     else if(c == 0x7f) // DEL
@@ -165,14 +179,19 @@ static void decode_usascii(VTermEncoding *enc, void *data,
 {
   int is_gr = bytes[*pos] & 0x80;
 
-  for(; *pos < bytelen && *cpi < cplen; (*pos)++) {
-    unsigned char c = bytes[*pos] ^ is_gr;
+  // Locals, so stores to cp[] don't force *pos and *cpi to be reloaded
+  size_t p = *pos;
+  int i = *cpi;
+  for(; p < bytelen && i < cplen; p++) {
+    unsigned char c = bytes[p] ^ is_gr;
 
     if(c < 0x20 || c == 0x7f || c >= 0x80)
-      return;
+      break;
 
-    cp[(*cpi)++] = c;
+    cp[i++] = c;
   }
+  *pos = p;
+  *cpi = i;
 }
 
 static VTermEncoding encoding_usascii = {
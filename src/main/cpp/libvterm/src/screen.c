@@ -204,6 +204,41 @@ static int putglyph(VTermGlyphInfo *info, VTermPos pos, void *user)
   return 1;
 }
 
+static int putglyphs(const uint32_t chars[], int count, VTermGlyphInfo *info, VTermPos pos, void *user)
+{
+  VTermScreen *screen = user;
+
+  // Cell damage is reported cell by cell
+  if(screen->damage_merge == VTERM_DAMAGE_CELL)
+    return 0;
+
+  ScreenCell *cell = getcell(screen, pos.row, pos.col);
+  if(!cell || !getcell(screen, pos.row, pos.col + count - 1))
+    return 0;
+
+  ScreenPen pen = screen->pen;
+  pen.protected_cell = info->protected_cell;
+  pen.dwl            = info->dwl;
+  pen.dhl            = info->dhl;
+
+  for(int i = 0; i < count; i++, cell++) {
+    cell->chars[0] = chars[i];
+    cell->chars[1] = 0;
+    cell->pen = pen;
+  }
+
+  VTermRect rect = {
+    .start_row = pos.row,
+    .end_row   = pos.row+1,
+    .start_col = pos.col,
+    .end_col   = pos.col+count,
+  };
+
+  damagerect(screen, rect);
+
+  return 1;
+}
+
 static int moverect_internal(VTermRect dest, VTermRect src, void *user)
 {
   VTermScreen *screen = user;
@@ -617,6 +652,7 @@ static VTermStateCallbacks state_cbs = {
   .bell        = &bell,
   .resize      = &resize,
   .setlineinfo = &setlineinfo,
+  .putglyphs   = &putglyphs,
 };
 
 static VTermScreen *screen_new(VTerm *vt)
@@ -28,6 +28,27 @@ static void putglyph(VTermState *state, const uint32_t chars[], int width, VTerm
   DEBUG_LOG("libvterm: Unhandled putglyph U+%04x at (%d,%d)\n", chars[0], pos.col, pos.row);
 }
 
+static void putglyphs(VTermState *state, const uint32_t chars[], int count, VTermPos pos)
+{
+  VTermGlyphInfo info = {
+    .chars = NULL,
+    .width = 1,
+    .protected_cell = state->protected_cell,
+    .dwl = state->lineinfo[pos.row].doublewidth,
+    .dhl = state->lineinfo[pos.row].doubleheight,
+  };
+
+  if(state->callbacks && state->callbacks->putglyphs)
+    if((*state->callbacks->putglyphs)(chars, count, &info, pos, state->cbdata))
+      return;
+
+  uint32_t glyph[2] = { 0, 0 };
+  for(int i = 0; i < count; i++, pos.col++) {
+    glyph[0] = chars[i];
+    putglyph(state, glyph, 1, pos);
+  }
+}
+
 static void updatecursor(VTermState *state, VTermPos *oldpos, int cancel_phantom)
 {
   if(state->pos.col == oldpos->col && state->pos.row == oldpos->row)
@@ -235,6 +256,52 @@ static void set_lineinfo(VTermState *state, int row, int force, int dwl, int dhl
     state->lineinfo[row] = info;
 }
 
+static bool is_ascii_glyph(uint32_t codepoint)
+{
+  return codepoint >= 0x20 && codepoint < 0x7f;
+}
+
+/* Put codepoints [start, end), all printable ASCII, as far as they fit on the
+ * cursor's row. Returns where it stopped.
+ */
+static int put_ascii_run(VTermState *state, const uint32_t codepoints[], int start, int end, int npoints)
+{
+  if(state->at_phantom || state->pos.col + 1 > THISROWWIDTH(state)) {
+    linefeed(state);
+    state->pos.col = 0;
+    state->at_phantom = 0;
+  }
+
+  int count = end - start;
+  if(count > THISROWWIDTH(state) - state->pos.col)
+    count = THISROWWIDTH(state) - state->pos.col;
+
+  putglyphs(state, codepoints + start, count, state->pos);
+
+  int last_col = state->pos.col + count - 1;
+
+  if(start + count == npoints) {
+    /* End of the buffer. Save the last glyph in case we have to combine with
+     * more on the next call */
+    state->combine_chars[0] = codepoints[start + count - 1];
+    state->combine_chars[1] = 0;
+    state->combine_width = 1;
+    state->combine_pos.row = state->pos.row;
+    state->combine_pos.col = last_col;
+  }
+
+  if(last_col + 1 >= THISROWWIDTH(state)) {
+    state->pos.col = last_col;
+    if(state->mode.autowrap)
+      state->at_phantom = 1;
+  }
+  else {
+    state->pos.col = last_col + 1;
+  }
+
+  return start + count;
+}
+
 static int on_text(const char bytes[], size_t len, void *user)
 {
   VTermState *state = user;
@@ -310,6 +377,21 @@ static int on_text(const char bytes[], size_t len, void *user)
   }
 
   for(; i < npoints; i++) {
+    // Runs of plain ASCII go out together, except a last glyph that
+    // combining characters are added to
+    if(!state->mode.insert && is_ascii_glyph(codepoints[i])) {
+      int run_end = i + 1;
+      while(run_end < npoints && is_ascii_glyph(codepoints[run_end]))
+        run_end++;
+      if(run_end < npoints && vterm_unicode_is_combining(codepoints[run_end]))
+        run_end--;
+
+      if(run_end - i > 1) {
+        i = put_ascii_run(state, codepoints, i, run_end, npoints) - 1;
+        continue;
+      }
+    }
+
     // Try to find combining characters following this
     int glyph_starts = i;
     int glyph_ends;
@@ -323,7 +323,7 @@ static const struct interval fullwidth[] = {
 #include "fullwidth.inc"
 };
 
-INTERNAL int vterm_unicode_width(uint32_t codepoint)
+static int unicode_width_bisearch(uint32_t codepoint)
 {
   if(bisearch(codepoint, fullwidth, sizeof(fullwidth) / sizeof(fullwidth[0]) - 1))
     return 2;
@@ -331,7 +331,40 @@ INTERNAL int vterm_unicode_width(uint32_t codepoint)
   return mk_wcwidth(codepoint);
 }
 
-INTERNAL int vterm_unicode_is_combining(uint32_t codepoint)
+static int unicode_is_combining_bisearch(uint32_t codepoint)
 {
   return bisearch(codepoint, combining, sizeof(combining) / sizeof(struct interval) - 1);
 }
+
+// The intervals above flattened into a two-stage table, one byte per code
+// point: bits 0-1 hold the width + 1, bit 2 is set for combining characters.
+// Regenerate with find-unicode-widths whenever the intervals change.
+#define UNICODE_LIMIT     0x110000
+#define WIDTH_BLOCK_SHIFT 8
+#define WIDTH_COMBINING   0x04
+
+#include "unicode_width.inc"
+
+static inline int width_bits(uint32_t codepoint)
+{
+  return width_table[width_blocks[codepoint >> WIDTH_BLOCK_SHIFT]]
+                    [codepoint & ((1 << WIDTH_BLOCK_SHIFT) - 1)];
+}
+
+INTERNAL int vterm_unicode_width(uint32_t codepoint)
+{
+  if(codepoint >= 0x20 && codepoint < 0x7f)
+    return 1;
+  if(codepoint >= UNICODE_LIMIT)
+    return unicode_width_bisearch(codepoint);
+
+  return (width_bits(codepoint) & 0x03) - 1;
+}
+
+INTERNAL int vterm_unicode_is_combining(uint32_t codepoint)
+{
+  if(codepoint < 0x300 || codepoint >= UNICODE_LIMIT)
+    return 0;
+
+  return (width_bits(codepoint) & WIDTH_COMBINING) != 0;
+}
@@ -0,0 +1,368 @@
+#include <stdbool.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "scrollback.h"
+
+
+static inline uint16_t pack_attrs(const VTermScreenCellAttrs *attrs) {
+    return (uint16_t) (attrs->bold
+                       | attrs->underline << 1
+                       | attrs->italic << 3
+                       | attrs->blink << 4
+                       | attrs->reverse << 5
+                       | attrs->strike << 6
+                       | attrs->font << 7
+                       | attrs->dwl << 11
+                       | attrs->dhl << 12);
+}
+
+static inline void unpack_attrs(uint16_t packed, VTermScreenCellAttrs *attrs) {
+    attrs->bold = packed & 0x1;
+    attrs->underline = (packed >> 1) & 0x3;
+    attrs->italic = (packed >> 3) & 0x1;
+    attrs->blink = (packed >> 4) & 0x1;
+    attrs->reverse = (packed >> 5) & 0x1;
+    attrs->strike = (packed >> 6) & 0x1;
+    attrs->font = (packed >> 7) & 0xf;
+    attrs->dwl = (packed >> 11) & 0x1;
+    attrs->dhl = (packed >> 12) & 0x3;
+}
+
+static inline uint32_t pack_color(const VTermColor *color) {
+    if (VTERM_COLOR_IS_INDEXED(color)) {
+        return (uint32_t) color->type << 24 | color->indexed.idx;
+    }
+    return (uint32_t) color->type << 24
+           | (uint32_t) color->rgb.red << 16
+           | (uint32_t) color->rgb.green << 8
+           | color->rgb.blue;
+}
+
+static inline void unpack_color(uint32_t packed, VTermColor *color) {
+    color->type = (uint8_t) (packed >> 24);
+    if (VTERM_COLOR_IS_INDEXED(color)) {
+        color->indexed.idx = (uint8_t) packed;
+    } else {
+        color->rgb.red = (uint8_t) (packed >> 16);
+        color->rgb.green = (uint8_t) (packed >> 8);
+        color->rgb.blue = (uint8_t) packed;
+    }
+}
+
+static inline bool same_pen(const VTermScreenCell *a, const VTermScreenCell *b) {
+    //同一段里的格子通常是逐字节相同的，先比原始内存
+    if (memcmp(&a->attrs, &b->attrs, sizeof(VTermScreenCellAttrs)) == 0
+        && memcmp(&a->fg, &b->fg, sizeof(VTermColor)) == 0
+        && memcmp(&a->bg, &b->bg, sizeof(VTermColor)) == 0) {
+        return true;
+    }
+    return pack_attrs(&a->attrs) == pack_attrs(&b->attrs)
+           && pack_color(&a->fg) == pack_color(&b->fg)
+           && pack_color(&a->bg) == pack_color(&b->bg);
+}
+
+static inline size_t scroll_line_size(dimen_t ncodes, dimen_t nruns, bool narrow) {
+    return sizeof(ScrollbackLine) + sizeof(StyleRun) * nruns
+           + (narrow ? sizeof(uint8_t) : sizeof(uint32_t)) * ncodes;
+}
+
+size_t scroll_line_bytes(const ScrollbackLine *line) {
+    return scroll_line_size(line->ncodes, line->nruns, line->narrow);
+}
+
+static inline const uint8_t *scroll_line_codes(const ScrollbackLine *line) {
+    return (const uint8_t *) (line->runs + line->nruns);
+}
+
+static inline uint32_t scroll_line_code(const ScrollbackLine *line, dimen_t col) {
+    if (col >= line->ncodes) {
+        return 0;
+    }
+    if (line->narrow) {
+        return scroll_line_codes(line)[col];
+    }
+    return ((const uint32_t *) scroll_line_codes(line))[col];
+}
+
+/*
+ * Encode cells into line, reallocating it (or allocating when NULL) to the
+ * exact compact size.
+ */
+static ScrollbackLine *scroll_line_encode(ScrollbackLine *line, dimen_t cols,
+                                          const VTermScreenCell *cells) {
+    dimen_t ncodes = cols;
+    while (ncodes > 0 && cells[ncodes - 1].chars[0] == 0) {
+        ncodes--;
+    }
+
+    dimen_t nruns = cols > 0 ? 1 : 0;
+    bool narrow = true;
+    for (int i = 1; i < cols; ++i) {
+        if (!same_pen(&cells[i], &cells[i - 1])) {
+            nruns++;
+        }
+    }
+    for (int i = 0; i < ncodes; ++i) {
+        if (cells[i].chars[0] > 0xff) {
+            narrow = false;
+            break;
+        }
+    }
+
+    line = (ScrollbackLine *) realloc(line, scroll_line_size(ncodes, nruns, narrow));
+    if (line == NULL) {
+        return NULL;
+    }
+    line->cols = cols;
+    line->ncodes = ncodes;
+    line->nruns = nruns;
+    line->narrow = narrow;
+
+    StyleRun *run = line->runs - 1;
+    for (int i = 0; i < cols; ++i) {
+        if (i == 0 || !same_pen(&cells[i], &cells[i - 1])) {
+            run++;
+            run->start = (dimen_t) i;
+            run->attrs = pack_attrs(&cells[i].attrs);
+            run->fg = pack_color(&cells[i].fg);
+            run->bg = pack_color(&cells[i].bg);
+        }
+    }
+
+    if (narrow) {
+        uint8_t *codes = (uint8_t *) scroll_line_codes(line);
+        for (int i = 0; i < ncodes; ++i) {
+            codes[i] = (uint8_t) cells[i].chars[0];
+        }
+    } else {
+        uint32_t *codes = (uint32_t *) scroll_line_codes(line);
+        for (int i = 0; i < ncodes; ++i) {
+            codes[i] = cells[i].chars[0];
+        }
+    }
+    return line;
+}
+
+static inline void scroll_line_fill_cell(const ScrollbackLine *line, const StyleRun *run,
+                                         dimen_t col, VTermScreenCell *cell) {
+    cell->chars[0] = scroll_line_code(line, col);
+    cell->chars[1] = 0;
+
+    cell->width = (char) (col + 1 < line->ncodes
+                          && scroll_line_code(line, (dimen_t) (col + 1)) == (uint32_t) -1 ? 2 : 1);
+
+    unpack_attrs(run->attrs, &cell->attrs);
+    unpack_color(run->fg, &cell->fg);
+    unpack_color(run->bg, &cell->bg);
+}
+
+static inline dimen_t
+scroll_line_copy_to(const ScrollbackLine *line, dimen_t cols, VTermScreenCell *cells) {
+    dimen_t n = cols > line->cols ? line->cols : cols;
+
+    const StyleRun *run = line->runs;
+    const StyleRun *end = line->runs + line->nruns;
+    for (dimen_t i = 0; i < n; ++i) {
+        if (run + 1 < end && run[1].start == i) {
+            run++;
+        }
+        scroll_line_fill_cell(line, run, i, &cells[i]);
+    }
+    return n;
+}
+
+void scroll_line_get_cell(const ScrollbackLine *line, dimen_t col, VTermScreenCell *cell) {
+    //二分查找col所在的样式段
+    size_t lo = 0;
+    size_t hi = line->nruns;
+    while (hi - lo > 1) {
+        size_t mid = (lo + hi) / 2;
+        if (line->runs[mid].start <= col) {
+            lo = mid;
+        } else {
+            hi = mid;
+        }
+    }
+    scroll_line_fill_cell(line, &line->runs[lo], col, cell);
+}
+
+
+static inline size_t oldest_index(const Scrollback *sb) {
+    return sb->head >= sb->count - 1 ? sb->head - (sb->count - 1)
+                                     : sb->head + sb->capacity - (sb->count - 1);
+}
+
+void scrollback_init(Scrollback *sb, size_t capacity) {
+    sb->lines = capacity > 0 ? (ScrollbackLine **) malloc(sizeof(ScrollbackLine *) * capacity)
+                             : NULL;
+    sb->capacity = capacity;
+    sb->head = 0;
+    sb->count = 0;
+    sb->bytes = 0;
+    sb->spill = NULL;
+}
+
+void scrollback_free(Scrollback *sb) {
+    for (size_t i = 0; i < sb->count; ++i) {
+        free(scrollback_get(sb, i));
+    }
+    free(sb->lines);
+    sb->lines = NULL;
+    sb->capacity = 0;
+    sb->head = 0;
+    sb->count = 0;
+    sb->bytes = 0;
+
+    spill_close(sb->spill);
+    sb->spill = NULL;
+}
+
+int scrollback_enable_spill(Scrollback *sb, const char *path, size_t maxRows) {
+    if (sb->spill != NULL) {
+        spill_set_max_rows(sb->spill, maxRows);
+        return 0;
+    }
+    sb->spill = spill_open(path, maxRows);
+    return sb->spill != NULL ? 0 : -1;
+}
+
+size_t scrollback_rows(const Scrollback *sb) {
+    return sb->count + (sb->spill != NULL ? spill_count(sb->spill) : 0);
+}
+
+size_t scrollback_max_rows(const Scrollback *sb) {
+    return sb->capacity + (sb->spill != NULL ? spill_max_rows(sb->spill) : 0);
+}
+
+size_t scrollback_memory(const Scrollback *sb) {
+    return sizeof(ScrollbackLine *) * sb->capacity + sb->bytes
+           + (sb->spill != NULL ? spill_memory(sb->spill) : 0);
+}
+
+const ScrollbackLine *scrollback_line(Scrollback *sb, size_t row) {
+    if (row < sb->count) {
+        return scrollback_get(sb, row);
+    }
+    if (sb->spill != NULL) {
+        return spill_line(sb->spill, row - sb->count);
+    }
+    return NULL;
+}
+
+void scrollback_set_capacity(Scrollback *sb, size_t capacity) {
+    if (capacity > sb->capacity) {
+        //变大时只需把环绕到数组头部之前的那一段挪到新数组末尾
+        size_t oldest = sb->count > 0 ? oldest_index(sb) : 0;
+        ScrollbackLine **lines = (ScrollbackLine **) realloc(sb->lines,
+                                                             sizeof(ScrollbackLine *) * capacity);
+        if (lines == NULL) {
+            return;
+        }
+        if (sb->count > 0 && oldest > sb->head) {
+            size_t tail = sb->capacity - oldest;
+            memmove(lines + capacity - tail, lines + oldest, sizeof(ScrollbackLine *) * tail);
+        }
+        sb->lines = lines;
+        sb->capacity = capacity;
+
+    } else if (capacity < sb->capacity) {
+        //变小时先释放(或转存)最旧的行，剩下的按顺序放到新数组
+        while (sb->count > capacity) {
+            ScrollbackLine *oldest = sb->lines[oldest_index(sb)];
+            if (sb->spill != NULL) {
+                spill_append(sb->spill, oldest);
+            }
+            sb->bytes -= scroll_line_bytes(oldest);
+            free(oldest);
+            sb->count--;
+        }
+
+        ScrollbackLine **lines = NULL;
+        if (capacity > 0) {
+            lines = (ScrollbackLine **) malloc(sizeof(ScrollbackLine *) * capacity);
+            for (size_t i = 0; i < sb->count; ++i) {
+                lines[sb->count - 1 - i] = scrollback_get(sb, i);
+            }
+        }
+        free(sb->lines);
+        sb->lines = lines;
+        sb->capacity = capacity;
+        sb->head = sb->count > 0 ? sb->count - 1 : 0;
+    }
+}
+
+int scrollback_push(Scrollback *sb, dimen_t cols, const VTermScreenCell *cells) {
+    if (sb->capacity == 0) {
+        if (sb->spill == NULL) {
+            return 0;
+        }
+        ScrollbackLine *line = scroll_line_encode(NULL, cols, cells);
+        if (line == NULL) {
+            return 0;
+        }
+        spill_append(sb->spill, line);
+        free(line);
+        return 1;
+    }
+    ScrollbackLine *line = NULL;
+    size_t next = sb->head + 1 == sb->capacity ? 0 : sb->head + 1;
+
+    if (sb->count == sb->capacity) {
+        /* Full, next slot holds the oldest row. Spill it and recycle its memory */
+        line = sb->lines[next];
+        if (sb->spill != NULL) {
+            spill_append(sb->spill, line);
+        }
+    }
+
+    const size_t recycled = line != NULL ? scroll_line_bytes(line) : 0;
+    ScrollbackLine *encoded = scroll_line_encode(line, cols, cells);
+    if (encoded == NULL) {
+        if (line != NULL && sb->spill != NULL) {
+            /* The oldest row is spilled already, keeping it too would show it twice */
+            sb->bytes -= recycled;
+            sb->count--;
+            free(line);
+        }
+        return 0;
+    }
+    sb->bytes = sb->bytes - recycled + scroll_line_bytes(encoded);
+    if (sb->count < sb->capacity) {
+        sb->count++;
+    }
+
+    sb->lines[next] = encoded;
+    sb->head = next;
+    return 1;
+}
+
+static void fill_blank(dimen_t n, dimen_t cols, VTermScreenCell *cells) {
+    for (dimen_t col = n; col < cols; col++) {
+        cells[col].chars[0] = 0;
+        cells[col].width = 1;
+    }
+}
+
+int scrollback_pop(Scrollback *sb, dimen_t cols, VTermScreenCell *cells) {
+    if (sb->count == 0) {
+        const ScrollbackLine *spilled = sb->spill != NULL ? spill_line(sb->spill, 0) : NULL;
+        if (spilled == NULL) {
+            return 0;
+        }
+        fill_blank(scroll_line_copy_to(spilled, cols, cells), cols, cells);
+        spill_drop_newest(sb->spill);
+        return 1;
+    }
+
+    ScrollbackLine *line = sb->lines[sb->head];
+    sb->head = sb->head == 0 ? sb->capacity - 1 : sb->head - 1;
+    sb->count--;
+
+    fill_blank(scroll_line_copy_to(line, cols, cells), cols, cells);
+
+    sb->bytes -= scroll_line_bytes(line);
+    free(line);
+
+    return 1;
+}
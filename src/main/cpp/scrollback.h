@@ -0,0 +1,136 @@
+#ifndef ATERM_SCROLLBACK_H
+#define ATERM_SCROLLBACK_H
+
+#include <stdbool.h>
+#include <stddef.h>
+#include <stdint.h>
+
+#include <vterm.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+typedef short unsigned int dimen_t;
+
+/*
+ * Cells sharing one pen. A run covers the columns from start up to the next
+ * run's start (or the end of the line).
+ */
+typedef struct {
+    dimen_t start;
+    uint16_t attrs;  //packed VTermScreenCellAttrs
+    uint32_t fg;     //packed VTermColor
+    uint32_t bg;
+} StyleRun;
+
+/*
+ * Compact scrollback line: style runs followed by the code points. Trailing
+ * empty cells are not stored, they take the style of the last run. Code
+ * points are stored one byte each when the whole line fits in Latin-1.
+ * The width of a cell is not stored either, a wide cell is the one followed
+ * by a (uint32_t) -1 placeholder, like in VTermScreen.
+ */
+typedef struct {
+    dimen_t cols;
+    dimen_t ncodes;
+    dimen_t nruns;
+    uint8_t narrow;
+
+    StyleRun runs[0];
+} ScrollbackLine;
+
+/*
+ * Optional file backed tier holding lines older than the in-memory ones,
+ * see scrollback_spill.c.
+ */
+typedef struct ScrollbackSpill ScrollbackSpill;
+
+/*
+ * Scrollback history kept as a circular buffer of line pointers, so pushing
+ * and popping a line is O(1) no matter how long the history is. Lines
+ * dropped from a full buffer go to the spill tier when there is one.
+ *
+ * Rows are addressed from the newest line: row 0 is the line right above
+ * the screen, row count-1 the oldest one kept in memory, and rows after that
+ * come from the spill tier.
+ */
+typedef struct {
+    ScrollbackLine **lines;
+    size_t capacity;
+    size_t head;   //index of the newest line
+    size_t count;
+    size_t bytes;  //held by the lines in memory
+
+    ScrollbackSpill *spill;
+} Scrollback;
+
+void scrollback_init(Scrollback *sb, size_t capacity);
+
+void scrollback_free(Scrollback *sb);
+
+/*
+ * Grow or shrink the history. Shrinking drops the oldest lines.
+ */
+void scrollback_set_capacity(Scrollback *sb, size_t capacity);
+
+/*
+ * Keep up to maxRows more lines in a file at path once the in-memory
+ * history is full. Calling it again only changes maxRows.
+ */
+int scrollback_enable_spill(Scrollback *sb, const char *path, size_t maxRows);
+
+/*
+ * Lines kept, in memory and spilled.
+ */
+size_t scrollback_rows(const Scrollback *sb);
+
+size_t scrollback_max_rows(const Scrollback *sb);
+
+/*
+ * Heap bytes held by the history: the line ring, the lines in it and the
+ * buffers of the spill tier. Spilled lines live in the file and don't count.
+ */
+size_t scrollback_memory(const Scrollback *sb);
+
+/*
+ * Line at row, or NULL. A spilled line stays valid until the next call.
+ */
+const ScrollbackLine *scrollback_line(Scrollback *sb, size_t row);
+
+int scrollback_push(Scrollback *sb, dimen_t cols, const VTermScreenCell *cells);
+
+int scrollback_pop(Scrollback *sb, dimen_t cols, VTermScreenCell *cells);
+
+static inline ScrollbackLine *scrollback_get(const Scrollback *sb, size_t row) {
+    size_t idx = sb->head >= row ? sb->head - row : sb->head + sb->capacity - row;
+    return sb->lines[idx];
+}
+
+size_t scroll_line_bytes(const ScrollbackLine *line);
+
+ScrollbackSpill *spill_open(const char *path, size_t maxRows);
+
+void spill_close(ScrollbackSpill *spill);
+
+size_t spill_count(const ScrollbackSpill *spill);
+
+size_t spill_max_rows(const ScrollbackSpill *spill);
+
+size_t spill_memory(const ScrollbackSpill *spill);
+
+void spill_set_max_rows(ScrollbackSpill *spill, size_t maxRows);
+
+void spill_append(ScrollbackSpill *spill, const ScrollbackLine *line);
+
+const ScrollbackLine *spill_line(ScrollbackSpill *spill, size_t row);
+
+void spill_drop_newest(ScrollbackSpill *spill);
+
+void scroll_line_get_cell(const ScrollbackLine *line, dimen_t col, VTermScreenCell *cell);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif //ATERM_SCROLLBACK_H
@@ -0,0 +1,389 @@
+#include <errno.h>
+#include <fcntl.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <unistd.h>
+
+#include "scrollback.h"
+#include "utils/log.h"
+
+#define LOG_TAG "ScrollbackSpill"
+
+/*
+ * Cold scrollback tier. Lines that fall out of the in-memory ring are
+ * appended to a page buffer; full pages are written to fixed size slots of
+ * a file and read back through a handful of mmap windows.
+ *
+ * Line data grows from the start of a page, the offset table grows down
+ * from its end, so a page needs no header on disk. Every line ever spilled
+ * gets a sequence number, a page only has to remember the sequence number
+ * of its first offset entry.
+ */
+
+#define SPILL_PAGE_SIZE (64 * 1024)
+#define SPILL_WINDOWS 4
+#define NO_SLOT UINT32_MAX
+
+typedef struct {
+    uint64_t baseSeq;  //seq of offset entry 0
+    uint32_t entries;
+    uint32_t skip;     //oldest entries already dropped
+    uint32_t slot;
+} SpillPage;
+
+typedef struct {
+    uint32_t slot;
+    uint8_t *addr;
+    uint64_t lastUse;
+} SpillWindow;
+
+struct ScrollbackSpill {
+    int fd;
+    size_t maxRows;
+    size_t count;
+    uint64_t nextSeq;
+
+    //flushed pages, oldest first: pages[first] .. pages[first + npages - 1]
+    SpillPage *pages;
+    size_t first;
+    size_t npages;
+    size_t pagesCap;
+
+    uint32_t *freeSlots;
+    size_t nfree;
+    size_t freeCap;
+    uint32_t nslots;
+
+    //page being filled
+    uint8_t *current;
+    SpillPage cur;
+    uint32_t curUsed;
+
+    SpillWindow windows[SPILL_WINDOWS];
+    uint64_t clock;
+};
+
+static inline uint32_t *page_offsets(const uint8_t *page) {
+    return (uint32_t *) (page + SPILL_PAGE_SIZE);
+}
+
+static inline uint32_t page_offset(const uint8_t *page, uint32_t entry) {
+    return page_offsets(page)[-1 - (int) entry];
+}
+
+static inline uint32_t kept(const SpillPage *page) {
+    return page->entries - page->skip;
+}
+
+static void unmap_slot(ScrollbackSpill *spill, uint32_t slot) {
+    for (int i = 0; i < SPILL_WINDOWS; ++i) {
+        if (spill->windows[i].slot == slot) {
+            munmap(spill->windows[i].addr, SPILL_PAGE_SIZE);
+            spill->windows[i].slot = NO_SLOT;
+            spill->windows[i].addr = NULL;
+        }
+    }
+}
+
+static const uint8_t *map_slot(ScrollbackSpill *spill, uint32_t slot) {
+    SpillWindow *victim = &spill->windows[0];
+    for (int i = 0; i < SPILL_WINDOWS; ++i) {
+        SpillWindow *w = &spill->windows[i];
+        if (w->slot == slot) {
+            w->lastUse = ++spill->clock;
+            return w->addr;
+        }
+        if (w->slot == NO_SLOT || w->lastUse < victim->lastUse) {
+            victim = w;
+        }
+    }
+    if (victim->slot != NO_SLOT) {
+        munmap(victim->addr, SPILL_PAGE_SIZE);
+        victim->slot = NO_SLOT;
+    }
+    void *addr = mmap(NULL, SPILL_PAGE_SIZE, PROT_READ, MAP_SHARED, spill->fd,
+                      (off_t) slot * SPILL_PAGE_SIZE);
+    if (addr == MAP_FAILED) {
+        ALOGE("mmap slot %u failed: %s", slot, strerror(errno));
+        victim->addr = NULL;
+        return NULL;
+    }
+    victim->slot = slot;
+    victim->addr = (uint8_t *) addr;
+    victim->lastUse = ++spill->clock;
+    return victim->addr;
+}
+
+static void release_slot(ScrollbackSpill *spill, uint32_t slot) {
+    unmap_slot(spill, slot);
+    if (spill->nfree == spill->freeCap) {
+        size_t cap = spill->freeCap ? spill->freeCap * 2 : 16;
+        uint32_t *slots = (uint32_t *) realloc(spill->freeSlots, sizeof(uint32_t) * cap);
+        if (slots == NULL) {
+            return;//leak the slot, the file just stays a bit bigger
+        }
+        spill->freeSlots = slots;
+        spill->freeCap = cap;
+    }
+    spill->freeSlots[spill->nfree++] = slot;
+}
+
+static uint32_t alloc_slot(ScrollbackSpill *spill) {
+    if (spill->nfree > 0) {
+        return spill->freeSlots[--spill->nfree];
+    }
+    if (ftruncate(spill->fd, (off_t) (spill->nslots + 1) * SPILL_PAGE_SIZE) != 0) {
+        ALOGE("grow spill file failed: %s", strerror(errno));
+        return NO_SLOT;
+    }
+    return spill->nslots++;
+}
+
+static void reset_current(ScrollbackSpill *spill) {
+    spill->cur.baseSeq = spill->nextSeq;
+    spill->cur.entries = 0;
+    spill->cur.skip = 0;
+    spill->curUsed = 0;
+}
+
+static void drop_oldest_page(ScrollbackSpill *spill) {
+    SpillPage *page = &spill->pages[spill->first];
+    spill->count -= kept(page);
+    release_slot(spill, page->slot);
+    spill->first++;
+    spill->npages--;
+}
+
+static bool push_page(ScrollbackSpill *spill, const SpillPage *page) {
+    if (spill->first + spill->npages == spill->pagesCap) {
+        if (spill->first > spill->pagesCap / 2) {
+            memmove(spill->pages, spill->pages + spill->first, sizeof(SpillPage) * spill->npages);
+            spill->first = 0;
+        } else {
+            size_t cap = spill->pagesCap ? spill->pagesCap * 2 : 64;
+            SpillPage *pages = (SpillPage *) realloc(spill->pages, sizeof(SpillPage) * cap);
+            if (pages == NULL) {
+                return false;
+            }
+            spill->pages = pages;
+            spill->pagesCap = cap;
+        }
+    }
+    spill->pages[spill->first + spill->npages++] = *page;
+    return true;
+}
+
+static void flush_current(ScrollbackSpill *spill) {
+    if (kept(&spill->cur) == 0) {
+        reset_current(spill);
+        return;
+    }
+    SpillPage page = spill->cur;
+    page.slot = alloc_slot(spill);
+    bool ok = page.slot != NO_SLOT;
+    if (ok && pwrite(spill->fd, spill->current, SPILL_PAGE_SIZE,
+                     (off_t) page.slot * SPILL_PAGE_SIZE) != SPILL_PAGE_SIZE) {
+        ALOGE("write spill page failed: %s", strerror(errno));
+        release_slot(spill, page.slot);
+        ok = false;
+    }
+    if (ok && !push_page(spill, &page)) {
+        release_slot(spill, page.slot);
+        ok = false;
+    }
+    if (!ok) {
+        //rows are found by sequence number, so a lost page would shift every
+        //older row; drop the whole cold history instead of showing wrong lines
+        spill->count -= kept(&page);
+        while (spill->npages > 0) {
+            drop_oldest_page(spill);
+        }
+    }
+    reset_current(spill);
+}
+
+static void trim(ScrollbackSpill *spill) {
+    while (spill->count > spill->maxRows) {
+        if (spill->npages > 0) {
+            SpillPage *page = &spill->pages[spill->first];
+            if (spill->count - kept(page) >= spill->maxRows) {
+                drop_oldest_page(spill);
+            } else {
+                page->skip++;
+                spill->count--;
+            }
+        } else {
+            spill->cur.skip++;
+            spill->count--;
+            if (kept(&spill->cur) == 0) {
+                reset_current(spill);
+            }
+        }
+    }
+}
+
+/*
+ * Copy line into dst, at most room bytes. A line that does not fit even an
+ * empty page keeps only its first style run, and its text is cut if needed.
+ */
+static size_t copy_fitting(const ScrollbackLine *line, uint8_t *dst, size_t room) {
+    size_t len = scroll_line_bytes(line);
+    if (len <= room) {
+        memcpy(dst, line, len);
+        return len;
+    }
+    ScrollbackLine *out = (ScrollbackLine *) dst;
+    const size_t codeSize = line->narrow ? sizeof(uint8_t) : sizeof(uint32_t);
+    const size_t fixed = sizeof(ScrollbackLine) + sizeof(StyleRun);
+    size_t ncodes = line->ncodes;
+    if (fixed + ncodes * codeSize > room) {
+        ncodes = (room - fixed) / codeSize;
+    }
+    *out = *line;
+    out->nruns = 1;
+    out->ncodes = (dimen_t) ncodes;
+    out->runs[0] = line->runs[0];
+    memcpy(out->runs + 1, line->runs + line->nruns, ncodes * codeSize);
+    return fixed + ncodes * codeSize;
+}
+
+ScrollbackSpill *spill_open(const char *path, size_t maxRows) {
+    int fd = open(path, O_RDWR | O_CREAT | O_TRUNC | O_CLOEXEC, 0600);
+    if (fd < 0) {
+        ALOGE("open %s failed: %s", path, strerror(errno));
+        return NULL;
+    }
+    //the file is only reachable through our fd from now on
+    unlink(path);
+
+    ScrollbackSpill *spill = (ScrollbackSpill *) calloc(1, sizeof(ScrollbackSpill));
+    uint8_t *current = (uint8_t *) malloc(SPILL_PAGE_SIZE);
+    if (spill == NULL || current == NULL) {
+        free(spill);
+        free(current);
+        close(fd);
+        return NULL;
+    }
+    spill->fd = fd;
+    spill->maxRows = maxRows;
+    spill->current = current;
+    for (int i = 0; i < SPILL_WINDOWS; ++i) {
+        spill->windows[i].slot = NO_SLOT;
+    }
+    reset_current(spill);
+    return spill;
+}
+
+void spill_close(ScrollbackSpill *spill) {
+    if (spill == NULL) {
+        return;
+    }
+    for (int i = 0; i < SPILL_WINDOWS; ++i) {
+        if (spill->windows[i].slot != NO_SLOT) {
+            munmap(spill->windows[i].addr, SPILL_PAGE_SIZE);
+        }
+    }
+    close(spill->fd);
+    free(spill->pages);
+    free(spill->freeSlots);
+    free(spill->current);
+    free(spill);
+}
+
+size_t spill_count(const ScrollbackSpill *spill) {
+    return spill->count;
+}
+
+size_t spill_max_rows(const ScrollbackSpill *spill) {
+    return spill->maxRows;
+}
+
+size_t spill_memory(const ScrollbackSpill *spill) {
+    //the mmap windows map the file and are not counted
+    return sizeof(ScrollbackSpill) + SPILL_PAGE_SIZE
+           + sizeof(SpillPage) * spill->pagesCap + sizeof(uint32_t) * spill->freeCap;
+}
+
+void spill_set_max_rows(ScrollbackSpill *spill, size_t maxRows) {
+    spill->maxRows = maxRows;
+    trim(spill);
+}
+
+void spill_append(ScrollbackSpill *spill, const ScrollbackLine *line) {
+    if (spill->maxRows == 0) {
+        return;
+    }
+    size_t len = (scroll_line_bytes(line) + 3) & ~(size_t) 3;
+    size_t table = sizeof(uint32_t) * (spill->cur.entries + 1);
+    if (spill->curUsed + len + table > SPILL_PAGE_SIZE && spill->cur.entries > 0) {
+        flush_current(spill);
+        table = sizeof(uint32_t);
+    }
+
+    size_t room = SPILL_PAGE_SIZE - spill->curUsed - table;
+    size_t n = copy_fitting(line, spill->current + spill->curUsed, room);
+
+    page_offsets(spill->current)[-1 - (int) spill->cur.entries] = spill->curUsed;
+    spill->curUsed += (n + 3) & ~(size_t) 3;
+    spill->cur.entries++;
+    spill->count++;
+    spill->nextSeq++;
+
+    trim(spill);
+}
+
+const ScrollbackLine *spill_line(ScrollbackSpill *spill, size_t row) {
+    if (row >= spill->count) {
+        return NULL;
+    }
+    const uint64_t seq = spill->nextSeq - 1 - row;
+
+    if (kept(&spill->cur) > 0 && seq >= spill->cur.baseSeq) {
+        uint32_t offset = page_offset(spill->current, (uint32_t) (seq - spill->cur.baseSeq));
+        return (const ScrollbackLine *) (spill->current + offset);
+    }
+
+    //newest page whose base is not after seq
+    size_t lo = spill->first;
+    size_t hi = spill->first + spill->npages;
+    while (hi - lo > 1) {
+        size_t mid = (lo + hi) / 2;
+        if (spill->pages[mid].baseSeq <= seq) {
+            lo = mid;
+        } else {
+            hi = mid;
+        }
+    }
+    const SpillPage *page = &spill->pages[lo];
+    const uint8_t *addr = map_slot(spill, page->slot);
+    if (addr == NULL) {
+        return NULL;
+    }
+    return (const ScrollbackLine *) (addr + page_offset(addr, (uint32_t) (seq - page->baseSeq)));
+}
+
+void spill_drop_newest(ScrollbackSpill *spill) {
+    if (spill->count == 0) {
+        return;
+    }
+    spill->count--;
+    spill->nextSeq--;
+
+    if (kept(&spill->cur) > 0) {
+        spill->cur.entries--;
+        spill->curUsed = page_offset(spill->current, spill->cur.entries);
+        if (kept(&spill->cur) == 0) {
+            reset_current(spill);
+        }
+        return;
+    }
+
+    SpillPage *page = &spill->pages[spill->first + spill->npages - 1];
+    page->entries--;
+    if (kept(page) == 0) {
+        release_slot(spill, page->slot);
+        spill->npages--;
+    }
+    reset_current(spill);
+}
@@ -0,0 +1,116 @@
+#include <errno.h>
+#include <stdbool.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "trace.h"
+#include "utils/log.h"
+
+#define LOG_TAG "PtyTrace"
+
+/*
+ * Records go through a stdio buffer this big, so tracing a busy session
+ * costs a memcpy per chunk and a write now and then.
+ */
+#define TRACE_BUFFER_SIZE (256 * 1024)
+
+#define VARINT_MAX 10
+
+struct PtyTrace {
+    FILE *file;
+    char *buffer;
+    struct timespec start;
+    uint64_t lastMicros;    //time of the last record since start
+    bool failed;
+};
+
+static inline size_t put_varint(uint8_t *out, uint64_t value) {
+    size_t n = 0;
+    while (value >= 0x80) {
+        out[n++] = (uint8_t) (value | 0x80);
+        value >>= 7;
+    }
+    out[n++] = (uint8_t) value;
+    return n;
+}
+
+static uint64_t trace_delta(PtyTrace *trace) {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    const uint64_t micros = (uint64_t) (now.tv_sec - trace->start.tv_sec) * 1000000
+                            + (now.tv_nsec - trace->start.tv_nsec) / 1000;
+    const uint64_t delta = micros - trace->lastMicros;
+    trace->lastMicros = micros;
+    return delta;
+}
+
+static void trace_record(PtyTrace *trace, uint8_t type, const void *payload, size_t len) {
+    if (trace->failed) {
+        return;
+    }
+    uint8_t head[1 + 2 * VARINT_MAX];
+    size_t n = 0;
+    head[n++] = type;
+    n += put_varint(head + n, trace_delta(trace));
+    n += put_varint(head + n, len);
+    if (fwrite(head, 1, n, trace->file) != n
+        || (len > 0 && fwrite(payload, 1, len, trace->file) != len)) {
+        ALOGE("write trace failed: %s", strerror(errno));
+        trace->failed = true;
+    }
+}
+
+PtyTrace *trace_open(const char *path, int rows, int cols) {
+    FILE *file = fopen(path, "wb");
+    if (!file) {
+        ALOGE("open %s failed: %s", path, strerror(errno));
+        return NULL;
+    }
+
+    PtyTrace *trace = (PtyTrace *) calloc(1, sizeof(PtyTrace));
+    trace->file = file;
+    trace->buffer = (char *) malloc(TRACE_BUFFER_SIZE);
+    if (trace->buffer) {
+        setvbuf(file, trace->buffer, _IOFBF, TRACE_BUFFER_SIZE);
+    }
+    clock_gettime(CLOCK_MONOTONIC, &trace->start);
+
+    uint8_t header[sizeof(TRACE_MAGIC) + 2 * VARINT_MAX];
+    size_t n = sizeof(TRACE_MAGIC) - 1;
+    memcpy(header, TRACE_MAGIC, n);
+    header[n++] = TRACE_VERSION;
+    n += put_varint(header + n, (uint64_t) rows);
+    n += put_varint(header + n, (uint64_t) cols);
+    if (fwrite(header, 1, n, file) != n) {
+        ALOGE("write trace failed: %s", strerror(errno));
+        trace->failed = true;
+    }
+    return trace;
+}
+
+int trace_close(PtyTrace *trace) {
+    if (!trace) {
+        return 0;
+    }
+    int ret = fclose(trace->file) == 0 && !trace->failed ? 0 : -1;
+    free(trace->buffer);
+    free(trace);
+    return ret;
+}
+
+void trace_input(PtyTrace *trace, const char *bytes, size_t len) {
+    trace_record(trace, TRACE_INPUT, bytes, len);
+}
+
+void trace_output(PtyTrace *trace, const char *bytes, size_t len) {
+    trace_record(trace, TRACE_OUTPUT, bytes, len);
+}
+
+void trace_resize(PtyTrace *trace, int rows, int cols) {
+    uint8_t payload[2 * VARINT_MAX];
+    size_t n = put_varint(payload, (uint64_t) rows);
+    n += put_varint(payload + n, (uint64_t) cols);
+    trace_record(trace, TRACE_RESIZE, payload, n);
+}
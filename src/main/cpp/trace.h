@@ -0,0 +1,56 @@
+#ifndef ATERM_TRACE_H
+#define ATERM_TRACE_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/*
+ * Session trace: every chunk parsed from the pty, every chunk sent to it and
+ * every resize, with the time it happened, so a session can be replayed later
+ * (see TraceReplayer.java).
+ *
+ * The file starts with the magic "ATRC", a version byte and the screen size as
+ * two varints, rows then cols. Then come records of
+ *
+ *   type      one byte, TRACE_*
+ *   delta     varint, microseconds since the previous record
+ *   length    varint
+ *   payload   length bytes
+ *
+ * Varints are unsigned LEB128. A resize payload is rows then cols as varints.
+ * Readers skip types they don't know.
+ */
+#define TRACE_MAGIC "ATRC"
+#define TRACE_VERSION 1
+
+#define TRACE_INPUT 1
+#define TRACE_OUTPUT 2
+#define TRACE_RESIZE 3
+
+typedef struct PtyTrace PtyTrace;
+
+/*
+ * Create or truncate path and write the header, NULL on failure
+ */
+PtyTrace *trace_open(const char *path, int rows, int cols);
+
+/*
+ * Flush and close, returns 0 when everything reached the file
+ */
+int trace_close(PtyTrace *trace);
+
+void trace_input(PtyTrace *trace, const char *bytes, size_t len);
+
+void trace_output(PtyTrace *trace, const char *bytes, size_t len);
+
+void trace_resize(PtyTrace *trace, int rows, int cols);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif //ATERM_TRACE_H
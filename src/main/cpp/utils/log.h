@@ -1,6 +1,22 @@
+#ifdef __ANDROID__
+
 #include "android/log.h"
 
 #define  ALOGI(...)  __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define  ALOGE(...)  __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 #define  ALOGD(...)  __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
 #define  ALOGW(...)  __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
+
+#else
+
+// Host build, logcat lines go to stderr
+#include <stdio.h>
+
+#define  ALOG_PRINT(level, ...)  do { fprintf(stderr, level "/" LOG_TAG ": " __VA_ARGS__); \
+                                      fputc('\n', stderr); } while (0)
+#define  ALOGI(...)  ALOG_PRINT("I", __VA_ARGS__)
+#define  ALOGE(...)  ALOG_PRINT("E", __VA_ARGS__)
+#define  ALOGD(...)  ALOG_PRINT("D", __VA_ARGS__)
+#define  ALOGW(...)  ALOG_PRINT("W", __VA_ARGS__)
+
+#endif
@@ -1,31 +1,61 @@
 
 package aterm.terminal;
 
-import android.util.Log;
-
 import androidx.annotation.ColorInt;
 import androidx.annotation.Keep;
 import androidx.annotation.NonNull;
 import androidx.annotation.Size;
 import androidx.annotation.WorkerThread;
 
-import aterm.terminalview.BuildConfig;
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Single abstract terminal session backed by a pseudo terminal.
+ * <p>
+ * The emulator lives in native memory until {@link #close}. A terminal dropped
+ * without closing is freed once collected, but only the native side: the pty is
+ * left to the subclass.
  */
-public abstract class AbstractTerminal implements OutputCallback {
+public abstract class AbstractTerminal implements OutputCallback, Closeable {
     static final String TAG = "Terminal";
-    public static final boolean DEBUG = BuildConfig.DEBUG;
+    public static final boolean DEBUG = TerminalLog.DEBUG;
 
     static {
         System.loadLibrary("aterm");
     }
 
+    /**
+     * Reaps sessions whose pty closed, off the reader threads other terminals share
+     */
+    private static final Executor sExitExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            final Thread thread = new Thread(r, "TerminalExit");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
 
     private volatile long mNativePtr;
+    private final TerminalCleaner.Cleanable mCleanable;
+    private final AtomicBoolean mClosing = new AtomicBoolean();
+
+    // Calls in native code without the lock, close() waits on it for them before freeing
+    private final AtomicInteger mReaders = new AtomicInteger();
 
     private TerminalClient mClient;
+    private boolean mHeadlessWhenDetached;
+
+    // Whose streamed paste envelope is open, guarded by this; typed input closes it
+    private Object mPasteOwner;
 
     private volatile boolean mCursorVisible;
     private volatile int mCursorRow;
@@ -34,46 +64,50 @@ public abstract class AbstractTerminal implements OutputCallback {
     private volatile boolean mAltScreen;
 
 
-    protected DestroyCallback mDestroyCallback;
+    protected volatile DestroyCallback mDestroyCallback;
+
+    private byte[] mOutputBytes = new byte[4 * 1024];
 
     private final TerminalCallbacks mCallbacks = new TerminalCallbacks() {
         @Override
-        public int damage(int startRow, int endRow, int startCol, int endCol) {
+        public int update(int startRow, int endRow, int startCol, int endCol,
+                          int scrollStartRow, int scrollEndRow, int scrollRows,
+                          int cursorRow, int cursorCol, int cursorVisible, int seq) {
             if (DEBUG)
-                Log.d(TAG, "damage: " + startRow + "  " + endRow + "  " + startCol + "  " + endCol);
-            if (mClient != null) {
-                mClient.onDamage(startRow, endRow, startCol, endCol);
-            }
-            return 1;
-        }
+                TerminalLog.d(TAG, "update: " + startRow + "  " + endRow + "  " + startCol + "  " + endCol
+                        + "  scroll " + scrollRows + "  cursor " + cursorRow + "  " + cursorCol);
 
-        @Override
-        public int moveRect(int destStartRow, int destEndRow, int destStartCol, int destEndCol,
-                            int srcStartRow, int srcEndRow, int srcStartCol, int srcEndCol) {
-            if (DEBUG) Log.d(TAG, "moveRect: ");
+            final boolean cursorMoved = cursorRow != -1;
+            if (cursorMoved) {
+                mCursorRow = cursorRow;
+                mCursorCol = cursorCol;
+            }
             if (mClient != null) {
-                mClient.onMoveRect(destStartRow, destEndRow, destStartCol, destEndCol, srcStartRow,
-                        srcEndRow, srcStartCol, srcEndCol);
+                mClient.onUpdate(startRow, endRow, startCol, endCol,
+                        scrollStartRow, scrollEndRow, scrollRows, cursorMoved, seq);
             }
             return 1;
         }
 
         @Override
-        public int moveCursor(int posRow, int posCol, int oldPosRow, int oldPosCol, int visible) {
-            if (DEBUG) Log.d(TAG, "moveCursor: " + posRow + "  " + posCol);
-
-            mCursorRow = posRow;
-            mCursorCol = posCol;
+        public int bell() {
             if (mClient != null) {
-                mClient.onMoveCursor(posRow, posCol, oldPosRow, oldPosCol, visible);
+                mClient.onBell();
             }
             return 1;
         }
 
         @Override
-        public int bell() {
-            if (mClient != null) {
-                mClient.onBell();
+        public int ptyClosed(int error) {
+            onPtyClosed(error);
+            final DestroyCallback destroyCallback = mDestroyCallback;
+            if (destroyCallback != null) {
+                sExitExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        destroyCallback.onDestroy(AbstractTerminal.this, waitForExit());
+                    }
+                });
             }
             return 1;
         }
@@ -92,7 +126,7 @@ public abstract class AbstractTerminal implements OutputCallback {
         //                    VTERM_N_PROPS
         @Override
         public int setTermPropBoolean(int prop, boolean value) {
-            if (DEBUG) Log.d(TAG, "setTermPropBoolean: " + prop + "  " + value);
+            if (DEBUG) TerminalLog.d(TAG, "setTermPropBoolean: " + prop + "  " + value);
             if (prop == 1) {
                 mCursorVisible = value;
             }
@@ -110,6 +144,7 @@ public abstract class AbstractTerminal implements OutputCallback {
 
     public AbstractTerminal(int rows, int cols, int scrollRows, @ColorInt int fg, @ColorInt int bg) {
         mNativePtr = nativeInit(mCallbacks, this, rows, cols, scrollRows, fg, bg);
+        mCleanable = TerminalCleaner.register(this, mNativePtr);
     }
 
     public abstract void start();
@@ -137,56 +172,209 @@ public abstract class AbstractTerminal implements OutputCallback {
         this.mDestroyCallback = destroyCallback;
     }
 
-    private void destroy() {
+    /**
+     * Stop the pty reader, close the pty and free the native terminal. Only the first
+     * call does anything. Afterwards the input and paste methods are ignored and the
+     * screen getters throw, so detach the view first. Getters already running when it
+     * is called finish before the memory is freed. Like {@link #stopPtyReader} it must
+     * not be called while holding the terminal's lock, nor from {@link #onPtyClosed}.
+     */
+    @Override
+    public void close() {
+        if (!mClosing.compareAndSet(false, true)) {
+            return;
+        }
+        stopPtyReader();
         synchronized (this) {
-            if (mNativePtr != 0) {
-                closePty();
-                if (nativeDestroy(mNativePtr) != 0) {
-                    mNativePtr = 0;
-                    throw new IllegalStateException("destroy failed");
+            closePty();
+            mNativePtr = 0;
+        }
+        // A getter that saw the pointer before it was cleared is still in native code
+        boolean interrupted = false;
+        synchronized (mReaders) {
+            while (mReaders.get() != 0) {
+                try {
+                    mReaders.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
-                mNativePtr = 0;
             }
         }
+        mCleanable.clean();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            destroy();
-        } finally {
-            super.finalize();
+    public final boolean isClosed() {
+        return mNativePtr == 0;
+    }
+
+    /**
+     * Heap bytes the native side of this session holds: the emulator, the published
+     * screens, the scrollback kept in memory and the pty buffers. 0 once closed.
+     */
+    public final long getNativeMemoryUsage() {
+        synchronized (this) {
+            return mNativePtr != 0 ? nativeGetNativeMemory(mNativePtr) : 0;
+        }
+    }
+
+    /**
+     * Called once per terminal, by {@link #close} or by the cleaner after the
+     * terminal was collected.
+     */
+    static void destroyNative(long ptr) {
+        if (nativeDestroy(ptr) != 0) {
+            throw new IllegalStateException("destroy failed");
+        }
+    }
+
+    private long nativePtr() {
+        final long ptr = mNativePtr;
+        if (ptr == 0) {
+            throw new IllegalStateException("terminal closed");
+        }
+        return ptr;
+    }
+
+    /**
+     * Pointer for a call that doesn't hold the lock, pair with {@link #releaseReader}.
+     * The count goes up before the pointer is read and close() clears the pointer
+     * before it reads the count, so one of them always sees the other.
+     */
+    private long acquireReader() {
+        mReaders.incrementAndGet();
+        final long ptr = mNativePtr;
+        if (ptr == 0) {
+            releaseReader();
+            throw new IllegalStateException("terminal closed");
+        }
+        return ptr;
+    }
+
+    private void releaseReader() {
+        if (mReaders.decrementAndGet() == 0 && mNativePtr == 0) {
+            synchronized (mReaders) {
+                mReaders.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Let the terminal run headless while no view shows it, off by default. Headless,
+     * parsing no longer calls back into Java for screen updates nor refreshes the
+     * published screen, so {@link #getCellRun}, {@link #getSnapshot} and the cursor
+     * position go stale until a view attaches. {@link #getText} still reads the live
+     * screen. Attaching publishes the screen and sends it one update covering all of it.
+     */
+    public final void setHeadlessWhenDetached(boolean headless) {
+        synchronized (this) {
+            mHeadlessWhenDetached = headless;
+            updateHeadless();
         }
     }
 
     final void setClient(TerminalClient client) {
-        mClient = client;
+        synchronized (this) {
+            mClient = client;
+            updateHeadless();
+        }
+    }
+
+    private void updateHeadless() {
+        if (mNativePtr != 0) {
+            nativeSetHeadless(mNativePtr, mHeadlessWhenDetached && mClient == null);
+        }
     }
 
     public final void resize(int cols, int rows) {
         synchronized (this) {
             setPtyWindowSize(cols, rows);
-            if (nativeResize(mNativePtr, rows, cols, scrollRowSize()) != 0) {
+            if (nativeResize(nativePtr(), rows, cols, scrollRowSize()) != 0) {
                 throw new IllegalStateException("resize failed");
             }
         }
     }
 
 
+    /**
+     * Keep up to {@code maxRows} more scrollback rows beyond {@link #scrollRowSize()}.
+     * Older rows are paged out to {@code file}, which should be app private; it is
+     * unlinked as soon as it is opened. Calling it again only changes {@code maxRows}.
+     */
+    public final void enableScrollbackSpill(@NonNull File file, int maxRows) {
+        synchronized (this) {
+            if (nativeEnableScrollbackSpill(nativePtr(), file.getAbsolutePath(), maxRows) != 0) {
+                throw new IllegalStateException("enable scrollback spill failed");
+            }
+        }
+    }
+
+    /**
+     * Record everything parsed from and sent to the pty, and every resize, to
+     * {@code file} until {@link #stopTrace}, for {@link TraceReplayer}. A trace
+     * already running is stopped first.
+     */
+    public final void startTrace(@NonNull File file) {
+        synchronized (this) {
+            if (nativeStartTrace(nativePtr(), file.getAbsolutePath()) != 0) {
+                throw new IllegalStateException("start trace failed");
+            }
+        }
+    }
+
+    /**
+     * Close the trace file, returns false when part of the trace could not be written.
+     */
+    public final boolean stopTrace() {
+        synchronized (this) {
+            return nativeStopTrace(nativePtr()) == 0;
+        }
+    }
+
+
+    /*
+     * getRows, getCols, getScrollCurRows, getCellRun and getSnapshot read the
+     * screen published at the end of the last inputWrite, so they can be called
+     * from the UI thread while the reader thread keeps parsing. They don't take
+     * the lock, only a reader count that keeps close() from freeing under them.
+     */
+
     public final int getRows() {
-        return nativeGetRows(mNativePtr);
+        final long ptr = acquireReader();
+        try {
+            return nativeGetRows(ptr);
+        } finally {
+            releaseReader();
+        }
     }
 
     public final int getCols() {
-        return nativeGetCols(mNativePtr);
+        final long ptr = acquireReader();
+        try {
+            return nativeGetCols(ptr);
+        } finally {
+            releaseReader();
+        }
     }
 
     public final int getScrollRows() {
-        return nativeGetScrollRows(mNativePtr);
+        final long ptr = acquireReader();
+        try {
+            return nativeGetScrollRows(ptr);
+        } finally {
+            releaseReader();
+        }
     }
 
     public final int getScrollCurRows() {
-        return nativeGetScrollCur(mNativePtr);
+        final long ptr = acquireReader();
+        try {
+            return nativeGetScrollCur(ptr);
+        } finally {
+            releaseReader();
+        }
     }
 
     public boolean isAltScreen() {
@@ -194,8 +382,36 @@ public abstract class AbstractTerminal implements OutputCallback {
     }
 
     public final void getCellRun(int row, int col, @NonNull ScreenCell run) {
-        if (nativeGetCellRun(mNativePtr, row, col, run) != 0) {
-            throw new IllegalStateException("getCell failed");
+        final long ptr = acquireReader();
+        try {
+            if (nativeGetCellRun(ptr, row, col, run) != 0) {
+                throw new IllegalStateException("getCell failed");
+            }
+        } finally {
+            releaseReader();
+        }
+    }
+
+    /**
+     * Copy rows {@code [startRow, endRow)} into {@code snapshot} with one native call.
+     */
+    final void getSnapshot(int startRow, int endRow, @NonNull ScreenSnapshot snapshot) {
+        final long ptr = acquireReader();
+        final int cols;
+        try {
+            snapshot.prepare(startRow, endRow - startRow, nativeGetCols(ptr));
+            cols = nativeGetSnapshot(ptr, startRow, endRow, snapshot);
+        } finally {
+            releaseReader();
+        }
+        if (cols < 0) {
+            throw new IllegalStateException("getSnapshot failed");
+        }
+        if (cols != snapshot.cols) {
+            // Resized in between, the native side laid rows out with the new width
+            snapshot.cols = cols;
+            snapshot.rows = cols == 0 ? 0
+                    : Math.min(snapshot.rows, snapshot.data.length / (cols * ScreenSnapshot.STRIDE));
         }
     }
 
@@ -240,7 +456,7 @@ public abstract class AbstractTerminal implements OutputCallback {
                     continue;
                 }
                 final int[] codePoints = new int[size];
-                final int count = nativeGetLineText(mNativePtr, row, col1, col2, codePoints);
+                final int count = nativeGetLineText(nativePtr(), row, col1, col2, codePoints);
                 for (int i = 0; i < count; i++) {
                     final int len = Character.toChars(codePoints[i], chars, 0);
                     sb.append(chars, 0, len);
@@ -255,16 +471,20 @@ public abstract class AbstractTerminal implements OutputCallback {
 
 
     public void mouseMove(int row, int col, int mod) {
-        nativeMouseMove(mNativePtr, row, col, mod);
+        synchronized (this) {
+            nativeMouseMove(nativePtr(), row, col, mod);
+        }
     }
 
     public void mouseButton(int button, boolean pressed, int mod) {
-        nativeMouseButton(mNativePtr, button, pressed, mod);
+        synchronized (this) {
+            nativeMouseButton(nativePtr(), button, pressed, mod);
+        }
     }
 
     final int getValidCol(int row, int col) {
         synchronized (this) {
-            return nativeGetValidCol(mNativePtr, row, col);
+            return nativeGetValidCol(nativePtr(), row, col);
         }
     }
 
@@ -272,7 +492,7 @@ public abstract class AbstractTerminal implements OutputCallback {
     public final int[] getDefaultColors() {
         synchronized (this) {
             int[] colors = new int[2];
-            nativeGetDefaultColors(mNativePtr, colors);
+            nativeGetDefaultColors(nativePtr(), colors);
             return colors;
         }
     }
@@ -280,31 +500,250 @@ public abstract class AbstractTerminal implements OutputCallback {
     public final void setDefaultColors(@ColorInt int fg, @ColorInt int bg) {
         synchronized (this) {
             int[] colors = {fg, bg};
-            nativeSetDefaultColors(mNativePtr, colors);
+            nativeSetDefaultColors(nativePtr(), colors);
         }
     }
 
 
     protected final boolean dispatchKey(int modifiers, int key) {
         synchronized (this) {
-            return nativeDispatchKey(mNativePtr, modifiers, key);
+            endStreamedPasteLocked();
+            return mNativePtr != 0 && nativeDispatchKey(mNativePtr, modifiers, key);
         }
     }
 
     protected final boolean dispatchCharacter(int modifiers, int character) {
         synchronized (this) {
-            return nativeDispatchCharacter(mNativePtr, modifiers, character);
+            endStreamedPasteLocked();
+            return mNativePtr != 0 && nativeDispatchCharacter(mNativePtr, modifiers, character);
+        }
+    }
+
+    /**
+     * Send {@code len} code points from {@code off} in one call, as if typed with
+     * {@code modifiers}. The whole run reaches the pty in one flush.
+     */
+    protected final boolean dispatchText(@NonNull int[] codePoints, int off, int len, int modifiers) {
+        return dispatchText(codePoints, off, len, modifiers, false);
+    }
+
+    /**
+     * Like {@link #dispatchText(int[], int, int, int)}, a {@code paste} is wrapped in
+     * bracketed paste markers when the application turned that mode on.
+     */
+    protected final boolean dispatchText(@NonNull int[] codePoints, int off, int len, int modifiers,
+                                         boolean paste) {
+        if (off < 0 || len < 0 || off > codePoints.length - len) {
+            throw new IndexOutOfBoundsException("off " + off + " len " + len
+                    + " length " + codePoints.length);
+        }
+        synchronized (this) {
+            endStreamedPasteLocked();
+            return mNativePtr != 0 && nativeDispatchText(mNativePtr, modifiers, codePoints, off, len, paste);
+        }
+    }
+
+    /**
+     * Open a bracketed paste envelope for the text dispatched until {@link #endPaste};
+     * nothing is sent unless the application turned that mode on.
+     */
+    protected final void beginPaste() {
+        synchronized (this) {
+            if (mNativePtr != 0) {
+                nativePaste(mNativePtr, true);
+            }
+        }
+    }
+
+    protected final void endPaste() {
+        synchronized (this) {
+            if (mNativePtr != 0) {
+                nativePaste(mNativePtr, false);
+            }
+        }
+    }
+
+    /**
+     * Open the envelope of a paste {@code owner} streams from another thread. Unlike
+     * {@link #beginPaste}, the next key, character or text dispatched closes it, so
+     * typed input never lands inside the paste, and so does another owner's paste.
+     */
+    final void beginStreamedPaste(@NonNull Object owner) {
+        synchronized (this) {
+            endStreamedPasteLocked();
+            if (mNativePtr != 0) {
+                nativePaste(mNativePtr, true);
+                mPasteOwner = owner;
+            }
+        }
+    }
+
+    /**
+     * Send the next part of {@code owner}'s paste, return false without sending it
+     * when its envelope was closed in the meantime.
+     */
+    final boolean dispatchStreamedPaste(@NonNull Object owner, @NonNull int[] codePoints, int off, int len) {
+        synchronized (this) {
+            if (mPasteOwner != owner || mNativePtr == 0) {
+                return false;
+            }
+            nativeDispatchText(mNativePtr, 0, codePoints, off, len, false);
+            return true;
+        }
+    }
+
+    final void endStreamedPaste(@NonNull Object owner) {
+        synchronized (this) {
+            if (mPasteOwner == owner) {
+                endStreamedPasteLocked();
+            }
+        }
+    }
+
+    private void endStreamedPasteLocked() {
+        if (mPasteOwner != null) {
+            mPasteOwner = null;
+            if (mNativePtr != 0) {
+                nativePaste(mNativePtr, false);
+            }
+        }
+    }
+
+    /**
+     * Wait up to {@code timeoutMillis} until the output queued for the fd from
+     * {@link #setPtyOutputFd} went out, return whether it did. Without that fd it
+     * returns true at once; subclasses writing the pty themselves can override it.
+     */
+    @WorkerThread
+    protected boolean awaitPtyWritable(int timeoutMillis) {
+        mReaders.incrementAndGet();
+        try {
+            final long ptr = mNativePtr;
+            return ptr == 0 || nativeAwaitOutputWritable(ptr, timeoutMillis) != 0;
+        } finally {
+            releaseReader();
         }
     }
 
     protected int inputWrite(byte[] data, int off, int len) {
         synchronized (this) {
+            if (mNativePtr == 0) {
+                return len;
+            }
             return nativeInputWrite(mNativePtr, data, off, len);
         }
     }
 
+    /**
+     * Parse the remaining bytes of the direct buffer {@code data} in place and advance
+     * its position past them, so a channel can read the pty into it with no copy on
+     * the Java heap.
+     */
+    protected int inputWrite(@NonNull ByteBuffer data) {
+        if (!data.isDirect()) {
+            throw new IllegalArgumentException("inputWrite needs a direct buffer");
+        }
+        final int position = data.position();
+        final int len = data.remaining();
+        synchronized (this) {
+            if (mNativePtr != 0 && nativeInputWriteDirect(mNativePtr, data, position, len) < 0) {
+                throw new IllegalStateException("inputWrite failed");
+            }
+        }
+        data.position(position + len);
+        return len;
+    }
+
+    /**
+     * Read the pty {@code fd} natively and feed the terminal without going through
+     * {@link #inputWrite}. The ptys of all terminals share a couple of epoll threads
+     * that take a bounded slice from each ready pty in turn. Reads are parsed in
+     * batches with one screen update per batch. The fd stays owned by the caller and
+     * must stay open until {@link #stopPtyReader} returns or {@link #onPtyClosed} is
+     * called.
+     */
+    protected final void startPtyReader(int fd) {
+        final long ptr = acquireReader();
+        try {
+            if (nativeStartReader(ptr, fd) != 0) {
+                throw new IllegalStateException("start reader failed");
+            }
+        } finally {
+            releaseReader();
+        }
+    }
+
+    /**
+     * Stop the reader started by {@link #startPtyReader} and wait until no read of
+     * this terminal is in progress. Must not be called while holding the terminal's lock.
+     */
+    protected final void stopPtyReader() {
+        mReaders.incrementAndGet();
+        try {
+            final long ptr = mNativePtr;
+            if (ptr != 0) {
+                nativeStopReader(ptr);
+            }
+        } finally {
+            releaseReader();
+        }
+    }
+
+    /**
+     * Write terminal output straight to {@code fd} instead of calling
+     * {@link #writeToPty}, or go back to it with -1. The fd stays owned by the caller
+     * and is made non-blocking. What it can't take at once is queued, up to a limit
+     * past which output is dropped, and sent as it drains: by the pty reader when
+     * {@code fd} is the one given to {@link #startPtyReader}, otherwise by the next
+     * write or {@link #awaitPtyWritable}.
+     */
+    protected final void setPtyOutputFd(int fd) {
+        synchronized (this) {
+            nativeSetOutputFd(nativePtr(), fd);
+        }
+    }
+
+    /**
+     * Output collected during one terminal call, the first {@code len} bytes of
+     * {@code bytes}; the buffer is reused and only valid during the call. Copies
+     * into a reused array for {@link #writeToPty(byte[], int)}; override to write
+     * the buffer out directly, e.g. through a channel.
+     */
+    @Keep
+    protected void writeToPty(@NonNull ByteBuffer bytes, int len) {
+        if (mOutputBytes.length < len) {
+            mOutputBytes = new byte[len];
+        }
+        bytes.clear();
+        bytes.get(mOutputBytes, 0, len);
+        writeToPty(mOutputBytes, len);
+    }
+
+    /**
+     * The pty given to {@link #startPtyReader} reached end of file ({@code error} 0),
+     * or a read failed with errno {@code error}. The reader has stopped. Called on a
+     * reader thread shared with other terminals, so it should not block for long.
+     * The {@link DestroyCallback} is called afterwards on a thread of its own, that
+     * is the place to {@link #close} the terminal.
+     */
+    @WorkerThread
+    protected void onPtyClosed(int error) {
+    }
+
+    /**
+     * Exit code handed to the {@link DestroyCallback} once the pty closed, -1 when
+     * unknown. Subclasses owning the process on the pty reap it here; it runs on the
+     * callback's thread, not a reader thread, so it may block in waitpid.
+     */
+    @WorkerThread
+    protected int waitForExit() {
+        return -1;
+    }
+
     public int wordOffset(int row, int col, int dir) {
-        return nativeWordOffset(mNativePtr, row, col, dir);
+        synchronized (this) {
+            return nativeWordOffset(nativePtr(), row, col, dir);
+        }
     }
 
     @Override
@@ -329,12 +768,27 @@ public abstract class AbstractTerminal implements OutputCallback {
     @Keep
     private static native int nativeDestroy(long ptr);
 
+    @Keep
+    private static native long nativeGetNativeMemory(long ptr);
+
     @Keep
     private static native int nativeResize(long ptr, int rows, int cols, int scrollRows);
 
+    @Keep
+    private static native int nativeEnableScrollbackSpill(long ptr, String path, int maxRows);
+
+    @Keep
+    private static native int nativeStartTrace(long ptr, String path);
+
+    @Keep
+    private static native int nativeStopTrace(long ptr);
+
     @Keep
     private static native int nativeGetCellRun(long ptr, int row, int col, ScreenCell run);
 
+    @Keep
+    private static native int nativeGetSnapshot(long ptr, int startRow, int endRow, ScreenSnapshot snapshot);
+
     @Keep
     private static native int nativeGetRows(long ptr);
 
@@ -353,6 +807,10 @@ public abstract class AbstractTerminal implements OutputCallback {
     @Keep
     private static native boolean nativeDispatchCharacter(long ptr, int modifiers, int character);
 
+    @Keep
+    private static native boolean nativeDispatchText(long ptr, int modifiers, int[] codePoints,
+                                                     int off, int len, boolean paste);
+
     @Keep
     private static native int nativeGetLineText(long ptr, int row, int startCol, int endCol, int[] out);
 
@@ -371,12 +829,33 @@ public abstract class AbstractTerminal implements OutputCallback {
     @Keep
     private static native void nativeGetDefaultColors(long ptr, @Size(2) int[] colors);
 
+    @Keep
+    private static native void nativePaste(long ptr, boolean start);
+
+    @Keep
+    private static native int nativeAwaitOutputWritable(long ptr, int timeoutMillis);
+
     @Keep
     private static native int nativeInputWrite(long ptr, byte[] data, int off, int len);
 
+    @Keep
+    private static native int nativeInputWriteDirect(long ptr, ByteBuffer data, int off, int len);
+
     @Keep
     private static native int nativeWordOffset(long ptr, int row, int col, int dir);
 
+    @Keep
+    private static native int nativeStartReader(long ptr, int fd);
+
+    @Keep
+    private static native void nativeSetHeadless(long ptr, boolean headless);
+
+    @Keep
+    private static native void nativeSetOutputFd(long ptr, int fd);
+
+    @Keep
+    private static native void nativeStopReader(long ptr);
+
     public interface DestroyCallback {
         @WorkerThread
         void onDestroy(AbstractTerminal terminal, int exitCode);
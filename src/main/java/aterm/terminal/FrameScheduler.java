@@ -0,0 +1,116 @@
+package aterm.terminal;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Turns screen updates coming from the terminal's writer thread into at most one
+ * frame per vsync on the main thread.
+ * <p>
+ * An update only sets a dirty flag; the first one after a frame posts a single
+ * message that registers a {@link Choreographer} frame callback. While output keeps
+ * streaming the frame rate is lowered step by step, which leaves the rest of every
+ * other vsync to touch and IME events.
+ */
+final class FrameScheduler implements Choreographer.FrameCallback {
+    /**
+     * Frames drawn back to back before output counts as streaming (about half a second).
+     */
+    private static final int STREAMING_FRAMES = 30;
+
+    /**
+     * Frames apart more than this end a stream.
+     */
+    private static final long CONTINUOUS_GAP_NANOS = 100_000_000L;
+
+    /**
+     * Vsync timestamps jitter, don't let that push a frame to the next vsync.
+     */
+    private static final long FRAME_SLACK_NANOS = 4_000_000L;
+
+    private static final long STREAMING_INTERVAL_NANOS = 1_000_000_000L / 30;
+    private static final long LONG_STREAMING_INTERVAL_NANOS = 1_000_000_000L / 20;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFrame;
+
+    private final AtomicBoolean mDirty = new AtomicBoolean();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private long mLastFrameNanos;
+    private int mStreamingFrames;
+
+    private final Runnable mPostFrameCallback = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(FrameScheduler.this);
+        }
+    };
+
+    /**
+     * @param frame run on the main thread for every frame that has updates
+     */
+    FrameScheduler(@NonNull Runnable frame) {
+        mFrame = frame;
+    }
+
+    /**
+     * Mark the screen dirty, may be called from any thread.
+     */
+    void requestFrame() {
+        mDirty.set(true);
+        if (mScheduled.compareAndSet(false, true)) {
+            mHandler.post(mPostFrameCallback);
+        }
+    }
+
+    /**
+     * Drop a pending frame, main thread only.
+     */
+    void cancel() {
+        mHandler.removeCallbacks(mPostFrameCallback);
+        Choreographer.getInstance().removeFrameCallback(this);
+        mScheduled.set(false);
+        mStreamingFrames = 0;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        final long sinceLast = frameTimeNanos - mLastFrameNanos;
+        if (sinceLast < frameInterval() - FRAME_SLACK_NANOS) {
+            // Streaming, leave this vsync to input
+            Choreographer.getInstance().postFrameCallback(this);
+            return;
+        }
+
+        // Clear before consuming, an update racing with us schedules the next frame
+        mScheduled.set(false);
+        if (!mDirty.getAndSet(false)) {
+            return;
+        }
+
+        if (sinceLast <= CONTINUOUS_GAP_NANOS) {
+            mStreamingFrames++;
+        } else {
+            mStreamingFrames = 0;
+        }
+        mLastFrameNanos = frameTimeNanos;
+
+        mFrame.run();
+    }
+
+    private long frameInterval() {
+        if (mStreamingFrames >= STREAMING_FRAMES * 4) {
+            return LONG_STREAMING_INTERVAL_NANOS;
+        }
+        if (mStreamingFrames >= STREAMING_FRAMES) {
+            return STREAMING_INTERVAL_NANOS;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,350 @@
+package aterm.terminal;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Shader;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Rasterized glyphs in one alpha-only bitmap, so {@link ScreenLine} draws text by
+ * copying pixels instead of running {@link Canvas#drawText} per code point.
+ * <p>
+ * Every glyph gets a slot two cells wide. Slots are keyed by code point and style
+ * and recycled least recently used first; {@link #setTextSize} drops them all.
+ * Glyphs queued with {@link #add} are drawn tinted with one
+ * {@link Canvas#drawVertices} call per {@link #flush}.
+ * <p>
+ * Main thread only.
+ */
+final class GlyphAtlas {
+    static final int STYLE_BOLD = 1;
+
+    private static final int ATLAS_SIZE = 1024;
+
+    /**
+     * Color emoji would lose their colors in an alpha mask.
+     */
+    private static final int FIRST_EMOJI = 0x1f000;
+
+    /**
+     * Code points below {@link #FIRST_EMOJI} shown as emoji by default
+     * (Emoji_Presentation), first and last of each range.
+     */
+    private static final int[] BMP_EMOJI = {
+            0x231a, 0x231b, 0x23e9, 0x23ec, 0x23f0, 0x23f0, 0x23f3, 0x23f3,
+            0x25fd, 0x25fe, 0x2614, 0x2615, 0x2648, 0x2653, 0x267f, 0x267f,
+            0x2693, 0x2693, 0x26a1, 0x26a1, 0x26aa, 0x26ab, 0x26bd, 0x26be,
+            0x26c4, 0x26c5, 0x26ce, 0x26ce, 0x26d4, 0x26d4, 0x26ea, 0x26ea,
+            0x26f2, 0x26f3, 0x26f5, 0x26f5, 0x26fa, 0x26fa, 0x26fd, 0x26fd,
+            0x2705, 0x2705, 0x270a, 0x270b, 0x2728, 0x2728, 0x274c, 0x274c,
+            0x274e, 0x274e, 0x2753, 0x2755, 0x2757, 0x2757, 0x2795, 0x2797,
+            0x27b0, 0x27b0, 0x27bf, 0x27bf, 0x2b1b, 0x2b1c, 0x2b50, 0x2b50,
+            0x2b55, 0x2b55,
+    };
+
+    /**
+     * Vertex indices are shorts.
+     */
+    private static final int MAX_BATCH = (Short.MAX_VALUE + 1) / 4;
+
+    private static final int NONE = -1;
+
+    private final Paint mGlyphPaint = new Paint();
+    private final Paint mClearPaint = new Paint();
+    private final Paint mDrawPaint = new Paint();
+
+    private Bitmap mBitmap;
+    private final Canvas mCanvas = new Canvas();
+
+    private int mSlotWidth;
+    private int mSlotHeight;
+    private int mSlotsPerRow;
+    private int mSlotCount;
+    private int mBaseline;
+
+    // Slots in use, most recently used first
+    private long[] mKeys = new long[0];
+    private int[] mPrev = new int[0];
+    private int[] mNext = new int[0];
+    private int mHead = NONE;
+    private int mTail = NONE;
+    private int mUsed;
+
+    // Open addressing from key to slot + 1
+    private int[] mTable = new int[0];
+
+    // Queued glyphs, four vertices each
+    private float[] mVerts = new float[0];
+    private float[] mTexs = new float[0];
+    private short[] mIndices = new short[0];
+    private int mCount;
+    private int mColor;
+
+    GlyphAtlas() {
+        mClearPaint.setColor(Color.TRANSPARENT);
+        mClearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+    }
+
+    /**
+     * Glyphs are drawn with {@code textPaint}'s typeface and size into cells of
+     * {@code charWidth} by {@code charHeight}, baseline at {@code -charTop}.
+     */
+    void setTextSize(@NonNull Paint textPaint, int charWidth, int charHeight, int charTop) {
+        release();
+        mGlyphPaint.set(textPaint);
+        mGlyphPaint.setColor(Color.WHITE);
+        mGlyphPaint.setUnderlineText(false);
+        mGlyphPaint.setStrikeThruText(false);
+
+        mSlotWidth = Math.max(1, charWidth * 2);
+        mSlotHeight = Math.max(1, charHeight);
+        mBaseline = -charTop;
+        mSlotsPerRow = Math.max(1, ATLAS_SIZE / mSlotWidth);
+        mSlotCount = mSlotsPerRow * Math.max(1, ATLAS_SIZE / mSlotHeight);
+
+        mKeys = new long[mSlotCount];
+        mPrev = new int[mSlotCount];
+        mNext = new int[mSlotCount];
+        mTable = new int[Integer.highestOneBit(mSlotCount) * 4];
+        mHead = mTail = NONE;
+        mUsed = 0;
+    }
+
+    /**
+     * Whether {@code cp} can come from the atlas, otherwise draw it as text. Cells
+     * with {@link ScreenSnapshot#FLAG_EMOJI} are drawn as text whatever {@code cp}.
+     */
+    static boolean canDraw(int cp) {
+        if (cp >= FIRST_EMOJI) {
+            return false;
+        }
+        if (cp < BMP_EMOJI[0]) {
+            return true;
+        }
+        int lo = 0;
+        int hi = BMP_EMOJI.length / 2 - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (cp < BMP_EMOJI[mid * 2]) {
+                hi = mid - 1;
+            } else if (cp > BMP_EMOJI[mid * 2 + 1]) {
+                lo = mid + 1;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queue {@code cp} at cell position {@code (x, top)}. A change of canvas
+     * or color flushes the glyphs queued so far.
+     */
+    void add(@NonNull Canvas canvas, int cp, int style, float x, float top, int color) {
+        if (mCount == MAX_BATCH || (mCount > 0 && color != mColor)) {
+            flush(canvas);
+        }
+        final int slot = lookup(canvas, cp, style);
+        if (slot == NONE) {
+            return;
+        }
+        mColor = color;
+
+        final int n = mCount;
+        if (n * 8 == mVerts.length) {
+            grow();
+        }
+        final float sx = (slot % mSlotsPerRow) * mSlotWidth;
+        final float sy = (slot / mSlotsPerRow) * mSlotHeight;
+        put(mVerts, n, x, top, x + mSlotWidth, top + mSlotHeight);
+        put(mTexs, n, sx, sy, sx + mSlotWidth, sy + mSlotHeight);
+        mCount = n + 1;
+    }
+
+    /**
+     * Draw everything queued by {@link #add} onto {@code canvas}.
+     */
+    void flush(@NonNull Canvas canvas) {
+        final int n = mCount;
+        if (n == 0) {
+            return;
+        }
+        mCount = 0;
+        mDrawPaint.setColor(mColor);
+        canvas.drawVertices(Canvas.VertexMode.TRIANGLES, n * 8, mVerts, 0, mTexs, 0,
+                null, 0, mIndices, 0, n * 6, mDrawPaint);
+    }
+
+    void release() {
+        mCount = 0;
+        if (mBitmap != null) {
+            mCanvas.setBitmap(null);
+            mDrawPaint.setShader(null);
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+        mHead = mTail = NONE;
+        mUsed = 0;
+        Arrays.fill(mTable, 0);
+    }
+
+    private int lookup(Canvas canvas, int cp, int style) {
+        final long key = ((long) style << 32) | (cp & 0xffffffffL);
+        final int mask = mTable.length - 1;
+        int h = hash(key) & mask;
+        int e;
+        while ((e = mTable[h]) != 0) {
+            if (mKeys[e - 1] == key) {
+                touch(e - 1);
+                return e - 1;
+            }
+            h = (h + 1) & mask;
+        }
+
+        if (!Character.isDefined(cp)) {
+            return NONE;
+        }
+        // The rasterized slot may be one a queued glyph points at
+        flush(canvas);
+        if (mBitmap == null) {
+            mBitmap = Bitmap.createBitmap(mSlotsPerRow * mSlotWidth,
+                    mSlotCount / mSlotsPerRow * mSlotHeight, Bitmap.Config.ALPHA_8);
+            mCanvas.setBitmap(mBitmap);
+            mDrawPaint.setShader(new BitmapShader(mBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+        }
+
+        final int slot;
+        if (mUsed < mSlotCount) {
+            slot = mUsed++;
+        } else {
+            slot = mTail;
+            unlink(slot);
+            remove(mKeys[slot]);
+        }
+        mKeys[slot] = key;
+        mTable[find(key)] = slot + 1;
+        link(slot);
+        rasterize(slot, cp, style);
+        return slot;
+    }
+
+    private void rasterize(int slot, int cp, int style) {
+        final int x = (slot % mSlotsPerRow) * mSlotWidth;
+        final int y = (slot / mSlotsPerRow) * mSlotHeight;
+        final Canvas canvas = mCanvas;
+        canvas.save();
+        canvas.clipRect(x, y, x + mSlotWidth, y + mSlotHeight);
+        canvas.drawPaint(mClearPaint);
+        mGlyphPaint.setFakeBoldText((style & STYLE_BOLD) != 0);
+        final char[] chars = Character.toChars(cp);
+        canvas.drawText(chars, 0, chars.length, x, y + mBaseline, mGlyphPaint);
+        canvas.restore();
+    }
+
+    private int find(long key) {
+        final int mask = mTable.length - 1;
+        int h = hash(key) & mask;
+        while (mTable[h] != 0) {
+            h = (h + 1) & mask;
+        }
+        return h;
+    }
+
+    private void remove(long key) {
+        final int mask = mTable.length - 1;
+        int h = hash(key) & mask;
+        while (mKeys[mTable[h] - 1] != key) {
+            h = (h + 1) & mask;
+        }
+        // Shift the rest of the cluster back over the hole
+        int hole = h;
+        mTable[hole] = 0;
+        for (h = (h + 1) & mask; mTable[h] != 0; h = (h + 1) & mask) {
+            final int home = hash(mKeys[mTable[h] - 1]) & mask;
+            if (((h - home) & mask) >= ((h - hole) & mask)) {
+                mTable[hole] = mTable[h];
+                mTable[h] = 0;
+                hole = h;
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32);
+    }
+
+    private void touch(int slot) {
+        if (slot != mHead) {
+            unlink(slot);
+            link(slot);
+        }
+    }
+
+    private void link(int slot) {
+        mPrev[slot] = NONE;
+        mNext[slot] = mHead;
+        if (mHead != NONE) {
+            mPrev[mHead] = slot;
+        }
+        mHead = slot;
+        if (mTail == NONE) {
+            mTail = slot;
+        }
+    }
+
+    private void unlink(int slot) {
+        final int prev = mPrev[slot];
+        final int next = mNext[slot];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        } else {
+            mTail = prev;
+        }
+    }
+
+    private void grow() {
+        final int glyphs = Math.min(MAX_BATCH, Math.max(64, mCount * 2));
+        mVerts = Arrays.copyOf(mVerts, glyphs * 8);
+        mTexs = Arrays.copyOf(mTexs, glyphs * 8);
+        mIndices = new short[glyphs * 6];
+        for (int i = 0; i < glyphs; i++) {
+            final int v = i * 4;
+            final int j = i * 6;
+            mIndices[j] = (short) v;
+            mIndices[j + 1] = (short) (v + 1);
+            mIndices[j + 2] = (short) (v + 2);
+            mIndices[j + 3] = (short) (v + 2);
+            mIndices[j + 4] = (short) (v + 1);
+            mIndices[j + 5] = (short) (v + 3);
+        }
+    }
+
+    /**
+     * Corners of a quad in the order top left, top right, bottom left, bottom right.
+     */
+    private static void put(float[] a, int n, float left, float top, float right, float bottom) {
+        final int i = n * 8;
+        a[i] = left;
+        a[i + 1] = top;
+        a[i + 2] = right;
+        a[i + 3] = top;
+        a[i + 4] = left;
+        a[i + 5] = bottom;
+        a[i + 6] = right;
+        a[i + 7] = bottom;
+    }
+}
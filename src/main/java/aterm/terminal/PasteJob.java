@@ -0,0 +1,133 @@
+package aterm.terminal;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+/**
+ * Streams a big paste to the pty from a background thread, a chunk at a time.
+ * <p>
+ * Before each chunk it waits until the pty took the previous one, so a slow reader
+ * on the other side holds the paste back instead of losing bytes. The whole paste
+ * sits in one bracketed paste envelope, also when it is cancelled half way.
+ * Cancelling only flags the job, the paste thread closes the envelope; input typed
+ * meanwhile closes it first and ends the paste, so it is never taken as part of it.
+ */
+final class PasteJob implements Runnable {
+    /**
+     * Code points sent per chunk, about what a pty accepts at once.
+     */
+    private static final int CHUNK = 512;
+
+    private static final int WRITABLE_TIMEOUT_MILLIS = 100;
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    interface Listener {
+        /**
+         * {@code sent} of {@code total} chars are out. Main thread.
+         */
+        void onPasteProgress(@NonNull PasteJob job, int sent, int total);
+
+        /**
+         * The paste ended, all of it unless {@code cancelled}. Main thread.
+         */
+        void onPasteFinished(@NonNull PasteJob job, boolean cancelled);
+    }
+
+    private final AbstractTerminal mTerm;
+    private final String mText;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private volatile boolean mCancelled;
+    private volatile int mSent;
+
+    private final Runnable mProgress = new Runnable() {
+        @Override
+        public void run() {
+            mListener.onPasteProgress(PasteJob.this, mSent, mText.length());
+        }
+    };
+
+    PasteJob(@NonNull AbstractTerminal term, @NonNull CharSequence text, @NonNull Listener listener) {
+        mTerm = term;
+        mText = text.toString();
+        mListener = listener;
+    }
+
+    void start() {
+        new Thread(this, "Paste").start();
+    }
+
+    /**
+     * Doesn't take the terminal's lock, the paste thread ends the paste within
+     * one wait for the pty.
+     */
+    @MainThread
+    void cancel() {
+        mCancelled = true;
+    }
+
+    int getSent() {
+        return mSent;
+    }
+
+    int getTotal() {
+        return mText.length();
+    }
+
+    @Override
+    public void run() {
+        final String text = mText;
+        final int length = text.length();
+        final int[] codePoints = new int[CHUNK];
+        long lastProgress = 0;
+
+        if (!mCancelled) {
+            mTerm.beginStreamedPaste(this);
+        }
+        try {
+            int i = 0;
+            while (i < length && !mCancelled && !mTerm.isClosed()) {
+                if (!mTerm.awaitPtyWritable(WRITABLE_TIMEOUT_MILLIS)) {
+                    continue;
+                }
+
+                int count = 0;
+                while (i < length && count < CHUNK) {
+                    final int codePoint = text.codePointAt(i);
+                    i += Character.charCount(codePoint);
+                    codePoints[count++] = codePoint;
+                }
+                if (mCancelled || !mTerm.dispatchStreamedPaste(this, codePoints, 0, count)) {
+                    break;
+                }
+                mTerm.flushToPty();
+                mSent = i;
+
+                final long now = SystemClock.uptimeMillis();
+                if (now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+                    lastProgress = now;
+                    mHandler.removeCallbacks(mProgress);
+                    mHandler.post(mProgress);
+                }
+            }
+        } finally {
+            mTerm.endStreamedPaste(this);
+            mTerm.flushToPty();
+
+            final boolean cancelled = mSent < length;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mHandler.removeCallbacks(mProgress);
+                    mListener.onPasteFinished(PasteJob.this, cancelled);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package aterm.terminal;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Rasterized rows of the visible part of the terminal, so a frame only runs
+ * {@link ScreenLine#drawLine} for rows that changed since they were drawn.
+ * <p>
+ * Slot {@code i} holds terminal row {@code startRow + i}. When the view or the
+ * terminal scrolls, slots are moved along with their rows so only the newly exposed
+ * rows get drawn. A cached row is redrawn when it was damaged, or when the selection
+ * or cursor inside it changed.
+ * <p>
+ * Damage is reported from the terminal's writer thread, everything else runs on
+ * the main thread.
+ */
+final class RowCache {
+    private Bitmap[] mBitmaps = new Bitmap[0];
+    private int[] mRowIds = new int[0];
+    private int[] mSelCol1s = new int[0];
+    private int[] mSelCol2s = new int[0];
+    private int[] mCursorCols = new int[0];
+
+    // Copies of the slots a scroll moves, sized with them so scrolling doesn't allocate
+    private Bitmap[] mScrollBitmaps = new Bitmap[0];
+    private int[] mScrollRowIds = new int[0];
+    private int[] mScrollSelCol1s = new int[0];
+    private int[] mScrollSelCol2s = new int[0];
+    private int[] mScrollCursorCols = new int[0];
+
+    private final Canvas mCanvas = new Canvas();
+
+    private int mStartRow;
+    private int mWidth;
+    private int mHeight;
+    private int mAlpha;
+    private int mScrollCurRows;
+
+    // Damage collected since the last frame, guarded by this
+    private int mPendingStart;
+    private int mPendingEnd;
+    private boolean mPendingAll;
+    private boolean mPendingScrollback;
+    private int mPendingScrollStart;
+    private int mPendingScrollEnd;
+    private int mPendingScrollRows;
+    private int mPendingScrollSeq;
+    private int mPendingSeq;
+    // Updates up to this seq are already part of the cached rows
+    private int mSyncedSeq;
+
+    // Seq of the last update applied to the cached rows
+    private int mSeq;
+
+    // Damage of the current frame
+    private int mDirtyStart;
+    private int mDirtyEnd;
+    private boolean mScrollbackMoved;
+
+    /**
+     * Screen rows {@code [startRow, endRow)} changed.
+     */
+    synchronized void markDirty(int startRow, int endRow) {
+        markDirtyLocked(startRow, endRow);
+    }
+
+    private void markDirtyLocked(int startRow, int endRow) {
+        if (startRow >= endRow) {
+            return;
+        }
+        if (mPendingStart >= mPendingEnd) {
+            mPendingStart = startRow;
+            mPendingEnd = endRow;
+        } else {
+            mPendingStart = Math.min(mPendingStart, startRow);
+            mPendingEnd = Math.max(mPendingEnd, endRow);
+        }
+    }
+
+    /**
+     * Screen rows {@code [startRow, endRow)} moved up by {@code rows} (down when negative)
+     * in the update numbered {@code seq}. Call before {@link #markDirty} for the same update.
+     */
+    synchronized void markScrolled(int startRow, int endRow, int rows, int seq) {
+        if (seq <= mSyncedSeq) {
+            return;
+        }
+        if (mPendingScrollRows != 0
+                && (startRow != mPendingScrollStart || endRow != mPendingScrollEnd)) {
+            // Two scroll regions in one frame, repaint both
+            markDirtyLocked(mPendingScrollStart, mPendingScrollEnd);
+            markDirtyLocked(startRow, endRow);
+            mPendingScrollRows = 0;
+            return;
+        }
+        // Earlier damage moves with the content, keep both places
+        if (mPendingStart < mPendingEnd) {
+            final int movedStart = Math.max(startRow, mPendingStart - rows);
+            final int movedEnd = Math.min(endRow, mPendingEnd - rows);
+            markDirtyLocked(movedStart, movedEnd);
+        }
+        mPendingScrollStart = startRow;
+        mPendingScrollEnd = endRow;
+        mPendingScrollRows += rows;
+        mPendingScrollSeq = seq;
+        if (mPendingScrollRows == 0) {
+            markDirtyLocked(startRow, endRow);
+        }
+    }
+
+    /**
+     * The update numbered {@code seq} has been reported.
+     */
+    synchronized void markDelivered(int seq) {
+        mPendingSeq = seq;
+    }
+
+    /**
+     * Lines were pushed to or popped from the scrollback, rows above the screen shifted.
+     */
+    synchronized void markScrollback() {
+        mPendingScrollback = true;
+    }
+
+    synchronized void markAllDirty() {
+        mPendingAll = true;
+    }
+
+    /**
+     * Start a frame showing {@code rows} rows from {@code startRow}, each one
+     * {@code width} by {@code height} pixels.
+     */
+    void begin(int startRow, int rows, int width, int height, int alpha, int scrollCurRows) {
+        boolean all;
+        final int scrollStart;
+        final int scrollEnd;
+        final int scrollRows;
+        synchronized (this) {
+            all = mPendingAll;
+            mDirtyStart = mPendingStart;
+            mDirtyEnd = mPendingEnd;
+            mScrollbackMoved = mPendingScrollback || scrollCurRows != mScrollCurRows;
+            scrollStart = mPendingScrollStart;
+            scrollEnd = mPendingScrollEnd;
+            scrollRows = mPendingScrollRows;
+            mSeq = mPendingSeq;
+            mPendingAll = false;
+            mPendingScrollback = false;
+            mPendingStart = mPendingEnd = 0;
+            mPendingScrollRows = 0;
+        }
+        mScrollCurRows = scrollCurRows;
+
+        if (rows != mBitmaps.length || width != mWidth || height != mHeight) {
+            release();
+            mBitmaps = new Bitmap[rows];
+            mRowIds = new int[rows];
+            mSelCol1s = new int[rows];
+            mSelCol2s = new int[rows];
+            mCursorCols = new int[rows];
+            mScrollBitmaps = new Bitmap[rows];
+            mScrollRowIds = new int[rows];
+            mScrollSelCol1s = new int[rows];
+            mScrollSelCol2s = new int[rows];
+            mScrollCursorCols = new int[rows];
+            mWidth = width;
+            mHeight = height;
+            all = true;
+        }
+        if (alpha != mAlpha) {
+            mAlpha = alpha;
+            all = true;
+        }
+        if (all) {
+            for (int i = 0; i < rows; i++) {
+                mRowIds[i] = Integer.MIN_VALUE;
+            }
+        } else if (startRow != mStartRow) {
+            rotate(startRow - mStartRow);
+        }
+        mStartRow = startRow;
+
+        if (!all && scrollRows != 0) {
+            scroll(scrollStart, scrollEnd, scrollRows);
+        }
+    }
+
+    /**
+     * Seq of the last update applied to the cached rows. A snapshot with a newer seq
+     * may have moved rows the cache doesn't know about yet.
+     */
+    int getSeq() {
+        return mSeq;
+    }
+
+    /**
+     * Every row was just redrawn from the screen numbered {@code seq}, updates up to
+     * it must not move them again.
+     */
+    void resync(int seq) {
+        synchronized (this) {
+            mSyncedSeq = seq;
+            mPendingSeq = Math.max(mPendingSeq, seq);
+            if (mPendingScrollRows != 0) {
+                if (mPendingScrollSeq > seq) {
+                    // Mixed with newer scrolls, can't tell them apart
+                    mPendingAll = true;
+                }
+                mPendingScrollRows = 0;
+            }
+        }
+        mSeq = seq;
+    }
+
+    /**
+     * Move cached rows of {@code [startRow, endRow)} up by {@code rows}, the rows
+     * exposed at the other end are left invalid.
+     */
+    private void scroll(int startRow, int endRow, int rows) {
+        final int first = Math.max(startRow, mStartRow);
+        final int last = Math.min(endRow, mStartRow + mBitmaps.length);
+        if (first >= last) {
+            return;
+        }
+        final int count = last - first;
+        final int offset = first - mStartRow;
+
+        final Bitmap[] bitmaps = mScrollBitmaps;
+        final int[] rowIds = mScrollRowIds;
+        final int[] selCol1s = mScrollSelCol1s;
+        final int[] selCol2s = mScrollSelCol2s;
+        final int[] cursorCols = mScrollCursorCols;
+        System.arraycopy(mBitmaps, offset, bitmaps, 0, count);
+        System.arraycopy(mRowIds, offset, rowIds, 0, count);
+        System.arraycopy(mSelCol1s, offset, selCol1s, 0, count);
+        System.arraycopy(mSelCol2s, offset, selCol2s, 0, count);
+        System.arraycopy(mCursorCols, offset, cursorCols, 0, count);
+
+        for (int j = 0; j < count; j++) {
+            final int i = offset + j;
+            final int src = j + rows;
+            if (src >= 0 && src < count && rowIds[src] == first + src && bitmaps[src] != null) {
+                mBitmaps[i] = bitmaps[src];
+                mRowIds[i] = first + j;
+                mSelCol1s[i] = selCol1s[src];
+                mSelCol2s[i] = selCol2s[src];
+                mCursorCols[i] = cursorCols[src];
+                bitmaps[src] = null;
+            } else {
+                mBitmaps[i] = null;
+                mRowIds[i] = Integer.MIN_VALUE;
+            }
+        }
+
+        // Hand the bitmaps that scrolled out to the exposed rows
+        int k = 0;
+        for (int j = 0; j < count; j++) {
+            final int i = offset + j;
+            if (mBitmaps[i] != null) {
+                continue;
+            }
+            while (k < count && bitmaps[k] == null) {
+                k++;
+            }
+            if (k < count) {
+                mBitmaps[i] = bitmaps[k];
+                bitmaps[k++] = null;
+            }
+        }
+        Arrays.fill(bitmaps, 0, count, null);
+    }
+
+    /**
+     * Move slots so that rows still visible after the view scrolled by
+     * {@code shift} rows stay cached.
+     */
+    private void rotate(int shift) {
+        final int rows = mBitmaps.length;
+        if (rows == 0) {
+            return;
+        }
+        final int n = ((shift % rows) + rows) % rows;
+        if (n == 0) {
+            return;
+        }
+        rotate(mBitmaps, n);
+        rotate(mRowIds, n);
+        rotate(mSelCol1s, n);
+        rotate(mSelCol2s, n);
+        rotate(mCursorCols, n);
+    }
+
+    /**
+     * Rotate left by {@code n} in place, by three reversals.
+     */
+    private static void rotate(Object[] a, int n) {
+        reverse(a, 0, n);
+        reverse(a, n, a.length);
+        reverse(a, 0, a.length);
+    }
+
+    private static void rotate(int[] a, int n) {
+        reverse(a, 0, n);
+        reverse(a, n, a.length);
+        reverse(a, 0, a.length);
+    }
+
+    private static void reverse(Object[] a, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            final Object t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    private static void reverse(int[] a, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            final int t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    /**
+     * Whether slot {@code index} can be drawn as it is.
+     */
+    boolean isValid(int index, int selCol1, int selCol2, int cursorCol) {
+        final int row = mStartRow + index;
+        if (mRowIds[index] != row || mBitmaps[index] == null) {
+            return false;
+        }
+        if (row >= mDirtyStart && row < mDirtyEnd) {
+            return false;
+        }
+        if (row < 0 && mScrollbackMoved) {
+            return false;
+        }
+        return mSelCol1s[index] == selCol1 && mSelCol2s[index] == selCol2
+                && mCursorCols[index] == cursorCol;
+    }
+
+    /**
+     * Cleared canvas for redrawing slot {@code index}; call {@link #rowDrawn} after.
+     */
+    @NonNull
+    Canvas drawRow(int index) {
+        Bitmap bitmap = mBitmaps[index];
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            mBitmaps[index] = bitmap;
+        } else {
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        mCanvas.setBitmap(bitmap);
+        return mCanvas;
+    }
+
+    void rowDrawn(int index, int selCol1, int selCol2, int cursorCol) {
+        mCanvas.setBitmap(null);
+        mRowIds[index] = mStartRow + index;
+        mSelCol1s[index] = selCol1;
+        mSelCol2s[index] = selCol2;
+        mCursorCols[index] = cursorCol;
+    }
+
+    Bitmap getRow(int index) {
+        return mBitmaps[index];
+    }
+
+    void release() {
+        for (int i = 0; i < mBitmaps.length; i++) {
+            if (mBitmaps[i] != null) {
+                mBitmaps[i].recycle();
+                mBitmaps[i] = null;
+            }
+            mRowIds[i] = Integer.MIN_VALUE;
+        }
+    }
+}
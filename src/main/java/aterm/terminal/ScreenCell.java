@@ -1,7 +1,5 @@
 package aterm.terminal;
 
-import android.graphics.Color;
-
 import androidx.annotation.ColorInt;
 import androidx.annotation.Keep;
 
@@ -27,8 +25,8 @@ class ScreenCell {
 //    int font;
 
     @ColorInt
-    int fg = Color.CYAN;
+    int fg = 0xff00ffff;
     @ColorInt
-    int bg = Color.DKGRAY;
+    int bg = 0xff444444;
 }
 
@@ -17,18 +17,17 @@ import static aterm.terminal.AbstractTerminal.TAG;
 class ScreenLine {
 
 
-    static void drawLine(@NonNull Canvas canvas,/*float dy,*/ final AbstractTerminal terminal,
+    static void drawLine(@NonNull Canvas canvas,/*float dy,*/ @NonNull final ScreenSnapshot snapshot,
                          @NonNull final TerminalMetrics metrics, final float top,
-                         final int row, final int cols,
+                         final int row,
                          final boolean cursorVisible, final int cursorRow, final int cursorCol,
                          final int selCol1, final int selCol2,
                          int alpha) {
-        if (terminal == null) {
-            Log.w(TAG, "onDraw() without a terminal");
-            canvas.drawColor(Color.MAGENTA);
+        if (row < snapshot.startRow || row >= snapshot.startRow + snapshot.rows) {
+            Log.w(TAG, "drawLine() outside of the snapshot " + row);
             return;
         }
-        final char[] chars = new char[2];
+        final char[] chars = new char[3];
 
         final int charWidth = metrics.charWidth;
         final int charHeight = metrics.charHeight;
@@ -37,23 +36,44 @@ class ScreenLine {
         final Paint bgPaint = metrics.bgPaint;
         final Paint textPaint = metrics.textPaint;
         final Paint cursorPaint = metrics.cursorPaint;
+        final GlyphAtlas glyphs = metrics.glyphs;
+
+        // Decorations are drawn as rects, like Skia places them for fake styles
+        final float textSize = textPaint.getTextSize();
+        final float baseline = top - charTop;
+        final float lineThickness = Math.max(1, textSize / 18);
+        final float underlineTop = baseline + textSize / 9 - lineThickness / 2;
+        final float strikeTop = baseline - textSize * 6 / 21 - lineThickness / 2;
 
         final boolean selected = selCol1 != -1 && selCol2 != -1;
 
+        final int[] data = snapshot.data;
+        final int cols = snapshot.cols;
+        final int rowStart = snapshot.index(row, 0);
 
         for (int col = 0; col < cols; ) {
-            final ScreenCell screenCell = metrics.run;
-            terminal.getCellRun(row, col, screenCell);
-
-            final int fg = screenCell.fg;
-            final int bg = screenCell.bg;
+            final int first = rowStart + col * ScreenSnapshot.STRIDE;
+            final int fg = data[first + ScreenSnapshot.FG];
+            final int bg = data[first + ScreenSnapshot.BG];
+            final int attrs = data[first + ScreenSnapshot.FLAGS] & ~ScreenSnapshot.CELL_MASK;
+
+            // Extend the run while cells share the same style
+            int end = col;
+            while (end < cols) {
+                final int i = rowStart + end * ScreenSnapshot.STRIDE;
+                final int flags = data[i + ScreenSnapshot.FLAGS];
+                if (data[i + ScreenSnapshot.FG] != fg || data[i + ScreenSnapshot.BG] != bg
+                        || (flags & ~ScreenSnapshot.CELL_MASK) != attrs) {
+                    break;
+                }
+                end += Math.max(1, flags & ScreenSnapshot.WIDTH_MASK);
+            }
+            end = Math.min(end, cols);
 
             bgPaint.setColor((bg & 0xffffff) | (alpha << 24));
 
-            textPaint.setColor(fg);
-            textPaint.setFakeBoldText(screenCell.bold);
-            textPaint.setUnderlineText(screenCell.underline);
-            textPaint.setStrikeThruText(screenCell.strike);
+            final boolean bold = (attrs & ScreenSnapshot.FLAG_BOLD) != 0;
+            final int style = bold ? GlyphAtlas.STYLE_BOLD : 0;
 
             cursorPaint.setColor(fg);
 
@@ -63,26 +83,19 @@ class ScreenLine {
             canvas.save();
             canvas.translate(x, 0);
 
-            final int colSize = screenCell.colSize;
+            final int colSize = end - col;
 
             canvas.clipRect(0, top, colSize * charWidth, top + charHeight);
 
             canvas.drawPaint(bgPaint);
 
-
-//            Log.d(TAG, "drawLine: " + col + "  " + cursorCol + "   " + colSize + "  "
-//                    + dataSize+"   "+Integer.toHexString(screenCell.bg)+"   "+Integer.toHexString(screenCell.fg));
-
-            final int[] data = screenCell.data;
-            final byte[] widths = screenCell.widths;
-            final int dataSize = screenCell.dataSize;
-
             int invertfg = -1;
             //draw cell
-            int subCol = 0;
-            for (int i = 0; i < dataSize; i++) {
-
-                final int width = widths[i];
+            for (int subCol = 0; subCol < colSize; ) {
+                final int i = first + subCol * ScreenSnapshot.STRIDE;
+                final int cellFlags = data[i + ScreenSnapshot.FLAGS];
+                final int width = Math.max(1, cellFlags & ScreenSnapshot.WIDTH_MASK);
+                final boolean emoji = (cellFlags & ScreenSnapshot.FLAG_EMOJI) != 0;
                 boolean invert = false;
 
                 final int currentCol = col + subCol;
@@ -97,29 +110,46 @@ class ScreenLine {
                             top + charHeight, cursorPaint);
                 }
 
-                final int cp = data[i];
-//                    Log.d(TAG, "drawCell: " + i + "   " + width + "   " + cp + "  " + dataSize);
-                if (Character.isDefined(cp)) {
-                    if (invert) {
-                        if (invertfg == -1) {
-                            invertfg = bg;
-                        }
-                        textPaint.setColor(invertfg);
+                final int cp = data[i + ScreenSnapshot.CODE];
+                int color = fg;
+                if (invert) {
+                    if (invertfg == -1) {
+                        invertfg = bg;
                     }
-                    final int count = Character.toChars(cp, chars, 0);
-                    canvas.drawText(chars, 0, count, charWidth * subCol, top - charTop, textPaint);
-
-                    if (invert) {
-                        textPaint.setColor(fg);
+                    color = invertfg;
+                }
+                // Blanks leave only the background
+                if (cp > ' ' && !emoji && GlyphAtlas.canDraw(cp)) {
+                    glyphs.add(canvas, cp, style, charWidth * subCol, top, color);
+                } else if (cp > ' ' && Character.isDefined(cp)) {
+                    glyphs.flush(canvas);
+                    textPaint.setColor(color);
+                    textPaint.setFakeBoldText(bold);
+                    int count = Character.toChars(cp, chars, 0);
+                    if (emoji) {
+                        chars[count++] = '\ufe0f';
                     }
+                    canvas.drawText(chars, 0, count, charWidth * subCol, baseline, textPaint);
                 }
 
                 subCol += width;
             }
+            glyphs.flush(canvas);
+
+            if ((attrs & (ScreenSnapshot.FLAG_UNDERLINE | ScreenSnapshot.FLAG_STRIKE)) != 0) {
+                cursorPaint.setColor(fg);
+                final float right = colSize * charWidth;
+                if ((attrs & ScreenSnapshot.FLAG_UNDERLINE) != 0) {
+                    canvas.drawRect(0, underlineTop, right, underlineTop + lineThickness, cursorPaint);
+                }
+                if ((attrs & ScreenSnapshot.FLAG_STRIKE) != 0) {
+                    canvas.drawRect(0, strikeTop, right, strikeTop + lineThickness, cursorPaint);
+                }
+            }
 
             canvas.restore();
 
-            col += colSize;
+            col = end;
         }
 
     }
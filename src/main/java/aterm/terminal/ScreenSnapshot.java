@@ -0,0 +1,60 @@
+package aterm.terminal;
+
+import androidx.annotation.Keep;
+
+/**
+ * Packed copy of a range of terminal rows, filled by a single native call.
+ * Every column takes {@link #STRIDE} ints: code point, resolved foreground,
+ * resolved background and flags (cell width plus attribute bits).
+ * <p>
+ * The column after a wide cell holds code point {@code -1}.
+ */
+@Keep
+final class ScreenSnapshot {
+    static final int STRIDE = 4;
+
+    static final int CODE = 0;
+    static final int FG = 1;
+    static final int BG = 2;
+    static final int FLAGS = 3;
+
+    static final int WIDTH_MASK = 0xff;
+    static final int FLAG_BOLD = 1 << 8;
+    static final int FLAG_UNDERLINE = 1 << 9;
+    static final int FLAG_STRIKE = 1 << 10;
+    /**
+     * The cell's combining chars include U+FE0F, it asks for emoji presentation.
+     */
+    static final int FLAG_EMOJI = 1 << 11;
+
+    /**
+     * Flag bits about the cell alone, runs of one style may differ in them.
+     */
+    static final int CELL_MASK = WIDTH_MASK | FLAG_EMOJI;
+
+    int[] data = new int[0];
+
+    /**
+     * Published screen the rows were copied from, matches the {@code seq} of the
+     * {@link TerminalCallbacks#update} that announced it.
+     */
+    int seq;
+
+    int startRow;
+    int rows;
+    int cols;
+
+    void prepare(int startRow, int rows, int cols) {
+        final int size = rows * cols * STRIDE;
+        if (data.length < size) {
+            data = new int[size];
+        }
+        this.startRow = startRow;
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    int index(int row, int col) {
+        return ((row - startRow) * cols + col) * STRIDE;
+    }
+}
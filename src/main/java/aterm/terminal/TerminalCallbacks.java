@@ -5,16 +5,16 @@ import androidx.annotation.Keep;
 
 @Keep
 public abstract class TerminalCallbacks {
-    public int damage(int startRow, int endRow, int startCol, int endCol) {
-        return 1;
-    }
-
-    public int moveRect(int destStartRow, int destEndRow, int destStartCol, int destEndCol,
-            int srcStartRow, int srcEndRow, int srcStartCol, int srcEndCol) {
-        return 1;
-    }
-
-    public int moveCursor(int posRow, int posCol, int oldPosRow, int oldPosCol, int visible) {
+    /**
+     * Everything that changed during one inputWrite, delivered once it is published.
+     * The damage rect is empty when {@code startRow == endRow}; {@code scrollRows} rows
+     * of {@code [scrollStartRow, scrollEndRow)} moved up (down when negative); the cursor
+     * row and col are -1 when it did not move. {@code seq} numbers the published screen,
+     * see {@link ScreenSnapshot#seq}.
+     */
+    public int update(int startRow, int endRow, int startCol, int endCol,
+            int scrollStartRow, int scrollEndRow, int scrollRows,
+            int cursorRow, int cursorCol, int cursorVisible, int seq) {
         return 1;
     }
 
@@ -37,4 +37,12 @@ public abstract class TerminalCallbacks {
     public int bell() {
         return 1;
     }
+
+    /**
+     * The pty read by the native reader was closed, {@code error} is the errno
+     * of the failed read or 0 at end of file. Called on the reader thread.
+     */
+    public int ptyClosed(int error) {
+        return 1;
+    }
 }
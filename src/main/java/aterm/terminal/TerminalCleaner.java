@@ -0,0 +1,87 @@
+package aterm.terminal;
+
+import androidx.annotation.NonNull;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Frees the native side of terminals that were dropped without {@link AbstractTerminal#close}.
+ * <p>
+ * Each terminal registers a phantom reference holding its native pointer, a daemon
+ * thread frees the pointer once the reference is enqueued. {@code java.lang.ref.Cleaner}
+ * would do the same but needs API 33.
+ */
+final class TerminalCleaner {
+    private static final ReferenceQueue<AbstractTerminal> sQueue = new ReferenceQueue<>();
+
+    /**
+     * Keeps the references themselves reachable until they are cleaned.
+     */
+    private static final Set<Cleanable> sLive = new HashSet<>();
+
+    static {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (; ; ) {
+                    try {
+                        final Reference<? extends AbstractTerminal> ref = sQueue.remove();
+                        if (((Cleanable) ref).clean() && AbstractTerminal.DEBUG) {
+                            TerminalLog.d(AbstractTerminal.TAG, "terminal was not closed, cleaned up");
+                        }
+                    } catch (InterruptedException ignored) {
+                    } catch (Throwable t) {
+                        // Keep the thread alive for the other terminals
+                        TerminalLog.d(AbstractTerminal.TAG, "clean failed: " + t);
+                    }
+                }
+            }
+        }, "TerminalCleaner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private TerminalCleaner() {
+    }
+
+    @NonNull
+    static Cleanable register(@NonNull AbstractTerminal term, long ptr) {
+        final Cleanable cleanable = new Cleanable(term, ptr);
+        synchronized (sLive) {
+            sLive.add(cleanable);
+        }
+        return cleanable;
+    }
+
+    static final class Cleanable extends PhantomReference<AbstractTerminal> {
+        private long mPtr;
+
+        private Cleanable(AbstractTerminal term, long ptr) {
+            super(term, sQueue);
+            mPtr = ptr;
+        }
+
+        /**
+         * Free the native terminal unless that was done already, return whether
+         * this call freed it.
+         */
+        boolean clean() {
+            final long ptr;
+            synchronized (sLive) {
+                ptr = mPtr;
+                mPtr = 0;
+                sLive.remove(this);
+            }
+            if (ptr == 0) {
+                return false;
+            }
+            clear();
+            AbstractTerminal.destroyNative(ptr);
+            return true;
+        }
+    }
+}
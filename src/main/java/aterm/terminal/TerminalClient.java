@@ -1,12 +1,13 @@
 package aterm.terminal;
 
 public interface TerminalClient {
-    public void onDamage(int startRow, int endRow, int startCol, int endCol);
-
-    public void onMoveRect(int destStartRow, int destEndRow, int destStartCol, int destEndCol,
-                           int srcStartRow, int srcEndRow, int srcStartCol, int srcEndCol);
-
-    public void onMoveCursor(int posRow, int posCol, int oldPosRow, int oldPosCol, int visible);
+    /**
+     * Called on the terminal's writer thread once per inputWrite that changed the screen.
+     * See {@link TerminalCallbacks#update} for the arguments.
+     */
+    public void onUpdate(int startRow, int endRow, int startCol, int endCol,
+                         int scrollStartRow, int scrollEndRow, int scrollRows,
+                         boolean cursorMoved, int seq);
 
     public void onBell();
 }
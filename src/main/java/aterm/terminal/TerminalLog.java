@@ -0,0 +1,28 @@
+package aterm.terminal;
+
+import android.util.Log;
+
+import aterm.terminalview.BuildConfig;
+
+/**
+ * Debug switch and logging for the classes that don't need a view, so they also
+ * load on a desktop JVM for tests and benchmarks. There {@link #DEBUG} comes from
+ * the {@code aterm.debug} system property and messages go to stderr;
+ * {@link BuildConfig} and {@link Log} are only touched on a device.
+ */
+final class TerminalLog {
+    private static final boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
+    static final boolean DEBUG = ANDROID ? BuildConfig.DEBUG : Boolean.getBoolean("aterm.debug");
+
+    private TerminalLog() {
+    }
+
+    static void d(String tag, String msg) {
+        if (ANDROID) {
+            Log.d(tag, msg);
+        } else {
+            System.err.println("D/" + tag + ": " + msg);
+        }
+    }
+}
@@ -9,26 +9,25 @@ import android.graphics.Typeface;
  * provided by main thread.
  */
 class TerminalMetrics {
-    private static final int MAX_RUN_LENGTH = 256;
-
     final Paint bgPaint = new Paint();
     final Paint textPaint = new Paint();
     final Paint cursorPaint = new Paint();
 
     /**
-     * Run of cells used when drawing
+     * Rows being drawn, refilled once per frame
      */
-    final ScreenCell run;
+    final ScreenSnapshot snapshot = new ScreenSnapshot();
+
+    /**
+     * Glyphs of the current typeface and size
+     */
+    final GlyphAtlas glyphs = new GlyphAtlas();
 
     int charTop;
     int charWidth;
     int charHeight;
 
     TerminalMetrics() {
-        run = new ScreenCell();
-        run.data = new int[MAX_RUN_LENGTH];
-        run.widths = new byte[MAX_RUN_LENGTH];
-
         setTextSize(Typeface.MONOSPACE, 35);
     }
 
@@ -46,5 +45,6 @@ class TerminalMetrics {
         charWidth = (int) Math.ceil(widths[0]);
         charHeight = (int) Math.ceil(fm.descent - fm.top);
 
+        glyphs.setTextSize(textPaint, charWidth, charHeight, charTop);
     }
 }
\ No newline at end of file
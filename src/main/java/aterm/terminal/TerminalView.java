@@ -8,6 +8,7 @@ import android.content.Context;
 import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Region;
 import android.graphics.Typeface;
@@ -79,6 +80,13 @@ public class TerminalView extends View {
 
     private final TerminalRect mSelRect = new TerminalRect();
 
+    private final RowCache mRowCache = new RowCache();
+
+    // Code points of the text being sent, reused between IME commits
+    private int[] mTextCodePoints = new int[0];
+    private boolean[] mDirtyRows = new boolean[0];
+    private int[] mSelCols = new int[0];
+
     private int mBackgroundAlpha = 0xff;
 
 
@@ -119,31 +127,55 @@ public class TerminalView extends View {
 
     private final InputMethodState mInputMethodState = new InputMethodState();
 
-    private static final int MSG_DAMAGE = 1;
-    private static final int MSG_MOVERECT = 2;
-    private static final int MSG_MOVECURSOR = 3;
-    private static final int MSG_BELL = 4;
+    private static final int MSG_BELL = 2;
+
+    /**
+     * Pastes from this many chars on are streamed by a {@link PasteJob}
+     */
+    private static final int PASTE_STREAM_THRESHOLD = 16 * 1024;
+
+    private PasteJob mPasteJob;
+    private PasteListener mPasteListener;
+    private final Paint mPasteProgressPaint = new Paint();
+
+    private final PasteJob.Listener mPasteJobListener = new PasteJob.Listener() {
+        @Override
+        public void onPasteProgress(@NonNull PasteJob job, int sent, int total) {
+            if (job != mPasteJob) {
+                return;
+            }
+            invalidate();
+            if (mPasteListener != null) mPasteListener.onPasteProgress(sent, total);
+        }
+
+        @Override
+        public void onPasteFinished(@NonNull PasteJob job, boolean cancelled) {
+            if (job != mPasteJob) {
+                return;
+            }
+            mPasteJob = null;
+            invalidate();
+            if (mPasteListener != null) mPasteListener.onPasteFinished(cancelled);
+        }
+    };
+
+    private final FrameScheduler mFrameScheduler = new FrameScheduler(new Runnable() {
+        @Override
+        public void run() {
+            invalidate();
+
+//            InputMethodManager imm = InputMethodManagerCompat.peekInstance(TerminalView.this);
+//            if (imm != null) {
+//                imm.updateSelection(TerminalView.this, 0, 0, -1, -1);
+//            }
+            if (mUpdateCallback != null) mUpdateCallback.onUpdate();
+        }
+    });
 
     private final Handler mHandler = new Handler(Looper.getMainLooper()) {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_DAMAGE:
-                case MSG_MOVERECT: {
-                    invalidate();
-                    if (mUpdateCallback != null) mUpdateCallback.onUpdate();
-                    break;
-                }
-                case MSG_MOVECURSOR: {
-                    invalidate();
-
-//                    InputMethodManager imm = InputMethodManagerCompat.peekInstance(TerminalView.this);
-//                    if (imm != null) {
-//                        imm.updateSelection(TerminalView.this, 0, 0, -1, -1);
-//                    }
-                    if (mUpdateCallback != null) mUpdateCallback.onUpdate();
-                    break;
-                }
                 case MSG_BELL: {
                     invalidate();
                     if (mUpdateCallback != null) mUpdateCallback.onBell();
@@ -155,19 +187,20 @@ public class TerminalView extends View {
 
     private final TerminalClient mClient = new TerminalClient() {
         @Override
-        public void onDamage(final int startRow, final int endRow, int startCol, int endCol) {
-            mHandler.sendEmptyMessage(MSG_DAMAGE);
-        }
-
-        @Override
-        public void onMoveRect(int destStartRow, int destEndRow, int destStartCol, int destEndCol,
-                               int srcStartRow, int srcEndRow, int srcStartCol, int srcEndCol) {
-            mHandler.sendEmptyMessage(MSG_MOVERECT);
-        }
-
-        @Override
-        public void onMoveCursor(int posRow, int posCol, int oldPosRow, int oldPosCol, int visible) {
-            mHandler.sendEmptyMessage(MSG_MOVECURSOR);
+        public void onUpdate(int startRow, int endRow, int startCol, int endCol,
+                             int scrollStartRow, int scrollEndRow, int scrollRows,
+                             boolean cursorMoved, int seq) {
+            if (scrollRows != 0) {
+                mRowCache.markScrolled(scrollStartRow, scrollEndRow, scrollRows, seq);
+                if (scrollStartRow == 0) mRowCache.markScrollback();
+            } else if (startRow == 0 && endRow > 0) {
+                // A scroll past the whole screen only shows up as damage
+                final AbstractTerminal term = mTerm;
+                if (term != null && endRow >= term.getRows()) mRowCache.markScrollback();
+            }
+            mRowCache.markDirty(startRow, endRow);
+            mRowCache.markDelivered(seq);
+            mFrameScheduler.requestFrame();
         }
 
         @Override
@@ -346,6 +379,25 @@ public class TerminalView extends View {
     }
 
 
+    private void getSelectionCols(TerminalRect selRect, int row, int cols, int[] out, int index) {
+        int selCol1 = -1;
+        int selCol2 = -1;
+        if (row >= selRect.startRow && row <= selRect.endRow) {
+            if (row == selRect.startRow) {
+                selCol1 = selRect.startCol;
+            } else {
+                selCol1 = 0;
+            }
+            if (row == selRect.endRow) {
+                selCol2 = selRect.endCol;
+            } else {
+                selCol2 = cols;
+            }
+        }
+        out[index * 2] = selCol1;
+        out[index * 2 + 1] = selCol2;
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         long start = SystemClock.currentThreadTimeMillis();
@@ -355,6 +407,9 @@ public class TerminalView extends View {
         }
         final int cols = term.getCols();
         final int rows = term.getRows();
+        if (cols <= 0 || rows <= 0) {
+            return;
+        }
         final TerminalMetrics metrics = this.mMetrics;
         final int charHeight = metrics.charHeight;
         final int backgroundAlpha = this.mBackgroundAlpha;
@@ -367,31 +422,63 @@ public class TerminalView extends View {
         final int endRow = startRow + rows /*+ 1*/;
 //        final int dy = 0;
 
+        if (mDirtyRows.length < rows) {
+            mDirtyRows = new boolean[rows];
+            mSelCols = new int[rows * 2];
+        }
+        final RowCache rowCache = this.mRowCache;
+        rowCache.begin(startRow, rows, cols * metrics.charWidth, charHeight, backgroundAlpha,
+                term.getScrollCurRows());
+
         final TerminalRect selRect = this.mSelRect;
+        final int[] selCols = this.mSelCols;
+
+        // Find the rows to redraw, and fetch only those from the terminal
+        int firstDirty = endRow;
+        int lastDirty = startRow - 1;
+        for (int row = startRow; row < endRow; row++) {
+            final int index = row - startRow;
+            getSelectionCols(selRect, row, cols, selCols, index);
+            final int rowCursorCol = cursorVisible && cursorRow == row ? cursorCol : -1;
+            if (!rowCache.isValid(index, selCols[index * 2], selCols[index * 2 + 1], rowCursorCol)) {
+                mDirtyRows[index] = true;
+                firstDirty = Math.min(firstDirty, row);
+                lastDirty = row;
+            } else {
+                mDirtyRows[index] = false;
+            }
+        }
+
+        final ScreenSnapshot snapshot = metrics.snapshot;
+        if (firstDirty <= lastDirty) {
+            term.getSnapshot(firstDirty, lastDirty + 1, snapshot);
+            if (snapshot.seq != rowCache.getSeq()) {
+                // Newer than the updates we got, cached rows may not have been moved yet
+                for (int i = 0; i < rows; i++) {
+                    mDirtyRows[i] = true;
+                }
+                term.getSnapshot(startRow, endRow, snapshot);
+                rowCache.resync(snapshot.seq);
+            }
+        }
+
         canvas.save();
         canvas.translate(mLeftOfScreenMargin, mTopOfScreenMargin);
 
 
         float top = 0;
         for (int row = startRow; row < endRow; row++) {
-
-            int selCol1 = -1;
-            int selCol2 = -1;
-            if (row >= selRect.startRow && row <= selRect.endRow) {
-                if (row == selRect.startRow) {
-                    selCol1 = selRect.startCol;
-                } else {
-                    selCol1 = 0;
-                }
-                if (row == selRect.endRow) {
-                    selCol2 = selRect.endCol;
-                } else {
-                    selCol2 = cols;
-                }
+            final int index = row - startRow;
+            final int selCol1 = selCols[index * 2];
+            final int selCol2 = selCols[index * 2 + 1];
+            final int rowCursorCol = cursorVisible && cursorRow == row ? cursorCol : -1;
+            if (mDirtyRows[index]) {
+                ScreenLine.drawLine(rowCache.drawRow(index), snapshot, metrics, 0, row,
+                        cursorVisible, cursorRow, cursorCol,
+                        selCol1, selCol2, backgroundAlpha);
+                rowCache.rowDrawn(index, selCol1, selCol2, rowCursorCol);
             }
-            ScreenLine.drawLine(canvas, term, metrics, top, row, cols,
-                    cursorVisible, cursorRow, cursorCol,
-                    selCol1, selCol2, backgroundAlpha);
+            canvas.drawBitmap(rowCache.getRow(index), 0, top, null);
             top += charHeight;
         }
 
@@ -411,6 +498,12 @@ public class TerminalView extends View {
         if (DEBUG) Log.d(TAG, "onDraw: " + startRow + "  " + charHeight + "  " + (end - start));
 
         if (mFastScroller != null) mFastScroller.draw(canvas);
+
+        final PasteJob pasteJob = mPasteJob;
+        if (pasteJob != null && pasteJob.getTotal() > 0) {
+            final float width = (float) getWidth() * pasteJob.getSent() / pasteJob.getTotal();
+            canvas.drawRect(0, 0, width, Math.max(2, charHeight / 8), mPasteProgressPaint);
+        }
     }
 
     @Override
@@ -446,6 +539,7 @@ public class TerminalView extends View {
         if (orig != null) {
             orig.setClient(null);
             orig.setDestroyCallback(null);
+            cancelPaste();
         }
         mTerm = term;
 
@@ -462,11 +556,13 @@ public class TerminalView extends View {
 //            Log.d(TAG, "setTerminal: " + Integer.toHexString(colors[0]) + "   " + Integer.toHexString(defaultBg));
 
             setFastScrollEnabled(true, fg);
+            mPasteProgressPaint.setColor(fg);
 
             mSelRect.reset();
             mScrollY = 0;
 
             // Populate any current settings
+            mRowCache.markAllDirty();
             invalidate();
         }
     }
@@ -483,6 +579,7 @@ public class TerminalView extends View {
         if (mTerm != null) mTerm.setDefaultColors(fg, bg);
 
         setFastScrollEnabled(true, fg);
+        mPasteProgressPaint.setColor(fg);
     }
 
 
@@ -500,6 +597,7 @@ public class TerminalView extends View {
 
     public void setTextSize(Typeface typeface, float textSize) {
         mMetrics.setTextSize(typeface, textSize);
+        mRowCache.markAllDirty();
 
         // Layout will kick off terminal resize when needed
         requestLayout();
@@ -601,11 +699,22 @@ public class TerminalView extends View {
     }
 
     private boolean sendText(CharSequence text) {
+        return sendText(text, false);
+    }
+
+    private boolean sendText(CharSequence text, boolean paste) {
         stopTextSelectionMode();
         if (TextUtils.isEmpty(text) || mTerm == null) {
             return false;
         }
+        // Typing or a short paste interrupts a long paste, like a key press
+        cancelPaste();
         int length = text.length();
+        if (mTextCodePoints.length < length) {
+            mTextCodePoints = new int[length];
+        }
+        final int[] codePoints = mTextCodePoints;
+        int count = 0;
         for (int i = 0; i < length; i++) {
             char c1 = text.charAt(i);
 
@@ -617,7 +726,12 @@ public class TerminalView extends View {
                     i++;
                 }
             }
-            mTerm.dispatchCharacter(getKeyModifiers(), codePoint);
+            codePoints[count++] = codePoint;
+        }
+        mTerm.dispatchText(codePoints, 0, count, getKeyModifiers(), paste);
+        if (length > 4096) {
+            // Don't hold on to a big paste
+            mTextCodePoints = new int[0];
         }
         setModifiers(0);
         mTerm.flushToPty();
@@ -626,6 +740,35 @@ public class TerminalView extends View {
         return true;
     }
 
+    private void paste(CharSequence text) {
+        if (text == null || text.length() < PASTE_STREAM_THRESHOLD || mTerm == null) {
+            sendText(text, true);
+            return;
+        }
+        cancelPaste();
+        resetStatus();
+        mPasteJob = new PasteJob(mTerm, text, mPasteJobListener);
+        mPasteJob.start();
+        invalidate();
+    }
+
+    /**
+     * Stop a paste still being streamed to the terminal.
+     */
+    public void cancelPaste() {
+        if (mPasteJob != null) {
+            mPasteJob.cancel();
+        }
+    }
+
+    public boolean isPasting() {
+        return mPasteJob != null;
+    }
+
+    public void setPasteListener(PasteListener pasteListener) {
+        this.mPasteListener = pasteListener;
+    }
+
     private int getKeyModifiers() {
         return mModifiers;
     }
@@ -653,6 +796,8 @@ public class TerminalView extends View {
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if (DEBUG) Log.d(TAG, "onKeyDown: " + keyCode);
+        // A key press interrupts a long paste
+        cancelPaste();
         resetStatus();
         return mTermKeys.onKey(this, keyCode, event, getKeyModifiers());
     }
@@ -1190,6 +1335,11 @@ public class TerminalView extends View {
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
 
+        mFrameScheduler.cancel();
+        cancelPaste();
+        mRowCache.release();
+        mMetrics.glyphs.release();
+
         if (mSelectionModifierCursorController != null) {
             getViewTreeObserver().removeOnTouchModeChangeListener(mSelectionModifierCursorController);
             mSelectionModifierCursorController.onDetached();
@@ -1354,7 +1504,7 @@ public class TerminalView extends View {
             ClipData clipData = clipboard.getPrimaryClip();
             if (clipData != null && clipData.getItemCount() > 0) {
                 CharSequence text = clipData.getItemAt(0).coerceToText(getContext());
-                sendText(text);
+                paste(text);
             }
             return true;
         }
@@ -1459,4 +1609,10 @@ public class TerminalView extends View {
     public interface ModifiersChangedListener {
         void onChanged(int modifiers);
     }
+
+    public interface PasteListener {
+        void onPasteProgress(int sent, int total);
+
+        void onPasteFinished(boolean cancelled);
+    }
 }
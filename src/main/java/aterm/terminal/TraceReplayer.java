@@ -0,0 +1,108 @@
+package aterm.terminal;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Plays back a trace written by {@link AbstractTerminal#startTrace}: input chunks
+ * are parsed with {@link AbstractTerminal#inputWrite} and resizes are applied as
+ * they were recorded. Output chunks are skipped, the terminal produces its own.
+ * See trace.h for the format.
+ */
+public final class TraceReplayer {
+    private static final int VERSION = 1;
+
+    private static final int TYPE_INPUT = 1;
+    private static final int TYPE_RESIZE = 3;
+
+    private final DataInputStream mIn;
+    private final int mRows;
+    private final int mCols;
+
+    private byte[] mChunk = new byte[4 * 1024];
+
+    /**
+     * Read the header of the trace in {@code in}, which stays owned by the caller.
+     */
+    public TraceReplayer(@NonNull InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        if (mIn.readUnsignedByte() != 'A' || mIn.readUnsignedByte() != 'T'
+                || mIn.readUnsignedByte() != 'R' || mIn.readUnsignedByte() != 'C') {
+            throw new IOException("not a trace");
+        }
+        final int version = mIn.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported trace version " + version);
+        }
+        mRows = (int) readVarint(mIn);
+        mCols = (int) readVarint(mIn);
+    }
+
+    /**
+     * Screen size when the trace started, the terminal to replay into should have it.
+     */
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getCols() {
+        return mCols;
+    }
+
+    /**
+     * Feed the rest of the trace into {@code term} and return the input bytes parsed.
+     * When {@code realTime} is set records are spaced as they were recorded,
+     * otherwise they go in back to back.
+     */
+    public long replay(@NonNull AbstractTerminal term, boolean realTime)
+            throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        long micros = 0;
+        long parsed = 0;
+        int type;
+        while ((type = mIn.read()) >= 0) {
+            micros += readVarint(mIn);
+            final int len = (int) readVarint(mIn);
+            if (mChunk.length < len) {
+                mChunk = new byte[Math.max(len, mChunk.length * 2)];
+            }
+            mIn.readFully(mChunk, 0, len);
+
+            if (realTime) {
+                final long ahead = start + micros * 1000 - System.nanoTime();
+                if (ahead > 0) {
+                    Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+                }
+            }
+
+            if (type == TYPE_INPUT) {
+                term.inputWrite(mChunk, 0, len);
+                parsed += len;
+            } else if (type == TYPE_RESIZE) {
+                final DataInputStream payload =
+                        new DataInputStream(new ByteArrayInputStream(mChunk, 0, len));
+                final int rows = (int) readVarint(payload);
+                final int cols = (int) readVarint(payload);
+                term.resize(cols, rows);
+            }
+        }
+        return parsed;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+        throw new IOException("bad varint");
+    }
+}